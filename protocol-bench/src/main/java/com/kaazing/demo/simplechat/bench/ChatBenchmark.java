@@ -0,0 +1,469 @@
+package com.kaazing.demo.simplechat.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Puts the same load on one or more running servers, one after the other,
+ * to compare their transports. For example, with two servers started by
+ * run-perf.sh, as logging every message would swamp the results, one with
+ * {@code --transport nio} on port 4445 and the other with
+ * {@code --transport blocking} on port 4446:
+ *
+ * <pre>
+ * java -jar protocol-bench-1.0-SNAPSHOT.jar -c 100000 127.0.0.1 4445 4446
+ * </pre>
+ *
+ * Against each server, an agent logs in, then every customer connects and
+ * logs in, which is timed until the last one is told an agent is present.
+ * Then each customer sends a message, the agent replies to it, and the
+ * customer sends the next once the reply arrives, for a number of rounds.
+ * The round trips are timed, so they include the server handling two
+ * messages and the agent turning them around.
+ * <p>
+ * Every client connection is driven by a single selector thread. The ports
+ * of one local address only go so far, so for a hundred thousand
+ * connections spread them over several loopback addresses with
+ * {@code --local-addresses}, and allow the client and the server enough file
+ * descriptors.
+ */
+public class ChatBenchmark {
+
+    private static final Logger logger = LogManager.getLogger(ChatBenchmark.class.getName());
+
+    /**
+     * The most customers connecting at once.
+     */
+    private static final int MAX_CONNECTS_IN_FLIGHT = 256;
+
+    /**
+     * How long a phase may go without any progress before it is given up.
+     */
+    private static final long STALL_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * The longest message text, which leaves room for the rest of the
+     * message within the four digits of the length prefix.
+     */
+    private static final int MAX_MESSAGE_SIZE = 9000;
+
+    private static final String AGENT_NAME = "bench-agent";
+
+    private static final String CUSTOMER_PREFIX = "bench-";
+
+    private int connections = 10000;
+
+    private int rounds = 10;
+
+    private int messageSize = 100;
+
+    private InetAddress[] localAddresses;
+
+    // The message every customer sends
+    private ByteBuffer message;
+
+    // The state of the current run, only used by the thread running it
+    private Selector selector;
+    private Peer agent;
+    private Peer[] customers;
+    private long[] latencies;
+    private int latencyCount;
+    private int loggedIn;
+    private int finished;
+    private int connecting;
+    private int nextCustomer;
+    private long lastProgress;
+
+    public static void main(String[] args) {
+        Options options = options();
+        CommandLine cmd;
+        ChatBenchmark benchmark = new ChatBenchmark();
+        try {
+            cmd = new DefaultParser().parse(options, args);
+            benchmark.connections = intValue(cmd, "connections", benchmark.connections);
+            benchmark.rounds = intValue(cmd, "rounds", benchmark.rounds);
+            benchmark.messageSize = intValue(cmd, "message-size", benchmark.messageSize);
+            if ( benchmark.messageSize > MAX_MESSAGE_SIZE ) {
+                throw new ParseException(String.format("The message size can be at most %d bytes", MAX_MESSAGE_SIZE));
+            }
+            if ( cmd.hasOption("local-addresses") ) {
+                String[] names = cmd.getOptionValue("local-addresses").split(",");
+                benchmark.localAddresses = new InetAddress[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    benchmark.localAddresses[i] = InetAddress.getByName(names[i].trim());
+                }
+            }
+            if ( cmd.hasOption("help") || cmd.getArgs().length < 2 ) {
+                new HelpFormatter().printHelp("ChatBenchmark [options] host port [port...]", options);
+                return;
+            }
+        }
+        catch (ParseException | IOException e) {
+            logger.error(e.getMessage());
+            new HelpFormatter().printHelp("ChatBenchmark [options] host port [port...]", options);
+            return;
+        }
+
+        try {
+            args = cmd.getArgs();
+            InetAddress host = InetAddress.getByName(args[0]);
+            List<String> results = new ArrayList<String>();
+            for (int i = 1; i < args.length; i++) {
+                int port = Integer.parseInt(args[i]);
+                results.add(String.format("%s:%d %s", host.getHostAddress(), port, benchmark.run(host, port)));
+            }
+            logger.info("");
+            for (String result : results) {
+                logger.info(result);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static Options options() {
+        Options options = new Options();
+        options.addOption(Option.builder("c").longOpt("connections").hasArg().argName("count")
+                .desc("Number of customers connecting (default 10000)").build());
+        options.addOption(Option.builder("n").longOpt("rounds").hasArg().argName("count")
+                .desc("Number of round trips each customer makes (default 10)").build());
+        options.addOption(Option.builder().longOpt("message-size").hasArg().argName("bytes")
+                .desc("Length of the text of each message (default 100)").build());
+        options.addOption(Option.builder().longOpt("local-addresses").hasArg().argName("addresses")
+                .desc("Comma separated local addresses to spread the customers over, such as 127.0.0.2,127.0.0.3").build());
+        options.addOption(Option.builder("h").longOpt("help").desc("Print this message").build());
+        return options;
+    }
+
+    private static int intValue(CommandLine cmd, String option, int defaultValue) throws ParseException {
+        if ( !cmd.hasOption(option) ) {
+            return defaultValue;
+        }
+        String value = cmd.getOptionValue(option);
+        try {
+            int i = Integer.parseInt(value);
+            if ( i >= 1 ) {
+                return i;
+            }
+        }
+        catch (NumberFormatException e) {
+        }
+        throw new ParseException(String.format("Invalid value for --%s: %s", option, value));
+    }
+
+    /**
+     * Run the benchmark against one server.
+     *
+     * @return a line of results
+     */
+    private String run(InetAddress host, int port) throws IOException {
+        logger.info("Benchmarking {}:{} with {} customers making {} round trips each", host.getHostAddress(), port,
+                connections, rounds);
+        InetSocketAddress server = new InetSocketAddress(host, port);
+        char[] text = new char[messageSize];
+        Arrays.fill(text, 'x');
+        message = frame(String.format("{\"type\":\"message\",\"messageText\":\"%s\"}", new String(text)));
+        selector = Selector.open();
+        customers = new Peer[connections];
+        latencies = new long[connections * rounds];
+        latencyCount = 0;
+        loggedIn = 0;
+        finished = 0;
+        connecting = 0;
+        nextCustomer = 0;
+
+        try {
+            SocketChannel channel = SocketChannel.open(server);
+            channel.configureBlocking(false);
+            agent = new Peer(-1, channel, 64 * 1024);
+            agent.key = channel.register(selector, SelectionKey.OP_READ, agent);
+            agent.send(credentials(AGENT_NAME, "agent"));
+
+            long start = System.nanoTime();
+            if ( !loop(server, () -> loggedIn == connections) ) {
+                return String.format("stalled with %d of %d customers logged in", loggedIn, connections);
+            }
+            long loginNanos = System.nanoTime() - start;
+            logger.info("{} customers logged in after {}", connections, seconds(loginNanos));
+
+            start = System.nanoTime();
+            for (Peer customer : customers) {
+                customer.sendMessage();
+            }
+            if ( !loop(server, () -> finished == connections) ) {
+                return String.format("stalled after %d of %d round trips", latencyCount, latencies.length);
+            }
+            long roundTripNanos = System.nanoTime() - start;
+            logger.info("{} round trips after {}", latencyCount, seconds(roundTripNanos));
+
+            Arrays.sort(latencies);
+            return String.format("logins %s (%d/s), round trips %s (%d/s), latency p50 %s p99 %s p99.9 %s max %s",
+                    seconds(loginNanos), rate(connections, loginNanos), seconds(roundTripNanos),
+                    rate(latencies.length, roundTripNanos), millis(percentile(0.5)), millis(percentile(0.99)),
+                    millis(percentile(0.999)), millis(latencies[latencies.length - 1]));
+        }
+        finally {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+            agent = null;
+            customers = null;
+        }
+    }
+
+    /**
+     * Drive every connection until the condition is met, connecting the
+     * customers still to connect along the way.
+     *
+     * @return false if the benchmark stalled
+     */
+    private boolean loop(InetSocketAddress server, BooleanSupplier done) throws IOException {
+        lastProgress = System.nanoTime();
+        while (!done.getAsBoolean()) {
+            while (nextCustomer < connections && connecting < MAX_CONNECTS_IN_FLIGHT) {
+                connect(server, nextCustomer++);
+            }
+            selector.select(100);
+            Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+                Peer peer = (Peer) key.attachment();
+                try {
+                    if ( key.isValid() && key.isConnectable() ) {
+                        peer.finishConnect();
+                    }
+                    if ( key.isValid() && key.isReadable() ) {
+                        peer.read();
+                    }
+                    if ( key.isValid() && key.isWritable() ) {
+                        peer.flush();
+                    }
+                }
+                catch (IOException e) {
+                    logger.error("{} failed: {}", peer.name(), e.getMessage());
+                    key.cancel();
+                    key.channel().close();
+                }
+            }
+            if ( System.nanoTime() - lastProgress > TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT_MILLIS) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void connect(InetSocketAddress server, int index) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        if ( localAddresses != null ) {
+            channel.bind(new InetSocketAddress(localAddresses[index % localAddresses.length], 0));
+        }
+        Peer customer = new Peer(index, channel, 256);
+        customers[index] = customer;
+        connecting++;
+        if ( channel.connect(server) ) {
+            customer.key = channel.register(selector, 0, customer);
+            customer.finishConnect();
+        }
+        else {
+            customer.key = channel.register(selector, SelectionKey.OP_CONNECT, customer);
+        }
+    }
+
+    private long percentile(double fraction) {
+        return latencies[(int) Math.min(latencies.length - 1, Math.ceil(fraction * latencies.length) - 1)];
+    }
+
+    private static String seconds(long nanos) {
+        return String.format("%.2f s", nanos / 1e9);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+
+    private static long rate(long count, long nanos) {
+        return (nanos == 0) ? 0 : count * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    private static ByteBuffer credentials(String username, String role) {
+        return frame(String.format("{\"type\":\"credentials\",\"username\":\"%s\",\"role\":\"%s\"}", username, role));
+    }
+
+    /**
+     * A message with an ASCII length prefix, the framing every client starts
+     * with.
+     */
+    private static ByteBuffer frame(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + bytes.length);
+        frame.put(String.format("%04d", bytes.length).getBytes(StandardCharsets.US_ASCII)).put(bytes);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * The value of a string field in a message from the server, which
+     * escapes none of the names the benchmark uses.
+     */
+    private static String field(String json, String name) {
+        String start = "\"" + name + "\":\"";
+        int from = json.indexOf(start);
+        if ( from < 0 ) {
+            return null;
+        }
+        from += start.length();
+        return json.substring(from, json.indexOf('"', from));
+    }
+
+    /**
+     * One of the client connections, the agent or a customer.
+     */
+    private class Peer {
+
+        // The index of a customer, or -1 for the agent
+        private final int index;
+
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        private ByteBuffer in;
+
+        // Bytes not written yet, or null
+        private ByteBuffer out;
+
+        private int roundsLeft = rounds;
+
+        private long sentAt;
+
+        private boolean loggedIn;
+
+        Peer(int index, SocketChannel channel, int bufferSize) {
+            this.index = index;
+            this.channel = channel;
+            this.in = ByteBuffer.allocate(bufferSize);
+        }
+
+        String name() {
+            return (index < 0) ? AGENT_NAME : CUSTOMER_PREFIX + index;
+        }
+
+        void finishConnect() throws IOException {
+            if ( !channel.finishConnect() ) {
+                return;
+            }
+            connecting--;
+            key.interestOps(SelectionKey.OP_READ);
+            send(credentials(name(), "customer"));
+        }
+
+        void sendMessage() throws IOException {
+            sentAt = System.nanoTime();
+            send(message.duplicate());
+        }
+
+        void send(ByteBuffer frame) throws IOException {
+            if ( out == null ) {
+                channel.write(frame);
+                if ( !frame.hasRemaining() ) {
+                    return;
+                }
+                out = ByteBuffer.allocate(Math.max(frame.remaining(), 4096));
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            if ( out.remaining() < frame.remaining() ) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + frame.remaining()));
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+            out.put(frame);
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            if ( out.hasRemaining() ) {
+                out.compact();
+                return;
+            }
+            out = null;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        void read() throws IOException {
+            if ( channel.read(in) < 0 ) {
+                throw new IOException("Closed by the server");
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = Integer.parseInt(new String(in.array(), in.position(), 4, StandardCharsets.US_ASCII));
+                if ( in.remaining() < 4 + length ) {
+                    break;
+                }
+                String json = new String(in.array(), in.position() + 4, length, StandardCharsets.UTF_8);
+                in.position(in.position() + 4 + length);
+                received(json);
+            }
+            in.compact();
+            if ( in.position() == in.capacity() ) {
+                in = ByteBuffer.allocate(in.capacity() * 2).put((ByteBuffer) in.flip());
+            }
+        }
+
+        private void received(String json) throws IOException {
+            String type = field(json, "type");
+            if ( index < 0 ) {
+                if ( "customerMessage".equals(type) ) {
+                    // Reply to the customer with its own text
+                    String sender = field(json, "sender");
+                    send(frame(String.format("{\"type\":\"message\",\"messageText\":\"%s\",\"to\":\"%s\"}",
+                            field(json, "messageText"), sender)));
+                }
+                return;
+            }
+            if ( "AgentsPresent".equals(type) && !loggedIn ) {
+                loggedIn = true;
+                ChatBenchmark.this.loggedIn++;
+                lastProgress = System.nanoTime();
+            }
+            else if ( "agentMessage".equals(type) ) {
+                latencies[latencyCount++] = System.nanoTime() - sentAt;
+                lastProgress = System.nanoTime();
+                if ( --roundsLeft > 0 ) {
+                    sendMessage();
+                }
+                else {
+                    finished++;
+                }
+            }
+        }
+
+    }
+
+}
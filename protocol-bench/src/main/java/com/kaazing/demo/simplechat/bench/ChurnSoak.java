@@ -0,0 +1,449 @@
+package com.kaazing.demo.simplechat.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.kaazing.demo.simplechat.ProtocolFilter;
+import com.kaazing.demo.simplechat.ServerConfig;
+import com.kaazing.demo.simplechat.SimpleChatServer;
+import com.kaazing.demo.simplechat.User;
+import com.kaazing.demo.simplechat.transport.BufferPool;
+
+/**
+ * Connects and disconnects clients over and over against a server running
+ * in the same JVM, and checks that the server is left holding nothing of
+ * theirs. For example, a million cycles against the nio transport, with the
+ * server's own options after a {@code --}:
+ *
+ * <pre>
+ * java --add-exports java.base/sun.nio.ch=ALL-UNNAMED --add-opens java.base/java.nio=ALL-UNNAMED \
+ *     -cp protocol-bench-1.0-SNAPSHOT.jar com.kaazing.demo.simplechat.bench.ChurnSoak -n 1000000 -- --transport nio
+ * </pre>
+ *
+ * An agent and a customer stay logged in throughout. In each cycle a client
+ * connects and logs in, as an agent every tenth cycle and as a customer
+ * otherwise. A customer waits to be told an agent is present, sends a
+ * message and waits for the agent's reply, and an agent waits to be told
+ * about the customer. Then the client disconnects, resetting the connection
+ * so the ports of the loopback address aren't used up by TIME_WAIT, except
+ * for every hundredth cycle, which closes cleanly.
+ * <p>
+ * At every check, and once all the cycles are done, the clients in flight
+ * are let finish and the server must get back to the two users that stay,
+ * in its users, usernames, agents and customers alike, with no pooled
+ * buffers outstanding. Buffer leak detection is always on.
+ */
+public class ChurnSoak {
+
+    private static final Logger logger = LogManager.getLogger(ChurnSoak.class.getName());
+
+    /**
+     * Every this many cycles the client logs in as an agent.
+     */
+    private static final int AGENT_EVERY = 10;
+
+    /**
+     * Every this many cycles the client closes its connection cleanly.
+     */
+    private static final int CLEAN_CLOSE_EVERY = 100;
+
+    /**
+     * How long a cycle, or the server settling at a check, may take before
+     * the soak fails.
+     */
+    private static final long STALL_TIMEOUT_MILLIS = 30000;
+
+    private static final String AGENT_NAME = "soak-agent";
+
+    private static final String CUSTOMER_NAME = "soak-customer";
+
+    private static final String CLIENT_PREFIX = "soak-";
+
+    private int cycles = 1000000;
+
+    private int clients = 64;
+
+    private int checkEvery = 100000;
+
+    private int port = 4445;
+
+    private SimpleChatServer server;
+
+    // The state of the soak, only used by the thread running it
+    private Selector selector;
+    private InetSocketAddress address;
+    private int started;
+    private int finished;
+    private int inFlight;
+    private long lastProgress;
+
+    public static void main(String[] args) {
+        Options options = options();
+        CommandLine cmd;
+        ServerConfig config;
+        ChurnSoak soak = new ChurnSoak();
+        try {
+            cmd = new DefaultParser().parse(options, args, true);
+            soak.cycles = intValue(cmd, "cycles", soak.cycles);
+            soak.clients = intValue(cmd, "clients", soak.clients);
+            soak.checkEvery = intValue(cmd, "check-every", soak.checkEvery);
+            soak.port = intValue(cmd, "port", soak.port);
+            if ( cmd.hasOption("help") ) {
+                new HelpFormatter().printHelp("ChurnSoak [options] [-- server options]", options);
+                return;
+            }
+            config = ServerConfig.parse(new DefaultParser().parse(ServerConfig.options(), serverArgs(cmd.getArgs())));
+        }
+        catch (ParseException e) {
+            logger.error(e.getMessage());
+            new HelpFormatter().printHelp("ChurnSoak [options] [-- server options]", options);
+            return;
+        }
+
+        boolean passed;
+        try {
+            passed = soak.run(config);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            passed = false;
+        }
+        // The server's threads don't stop of their own accord
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static Options options() {
+        Options options = new Options();
+        options.addOption(Option.builder("n").longOpt("cycles").hasArg().argName("count")
+                .desc("Number of connect and disconnect cycles (default 1000000)").build());
+        options.addOption(Option.builder("c").longOpt("clients").hasArg().argName("count")
+                .desc("Number of cycles in flight at once (default 64)").build());
+        options.addOption(Option.builder().longOpt("check-every").hasArg().argName("count")
+                .desc("Number of cycles between checks of the server (default 100000)").build());
+        options.addOption(Option.builder().longOpt("port").hasArg().argName("port")
+                .desc("Port the server listens on (default 4445)").build());
+        options.addOption(Option.builder("h").longOpt("help").desc("Print this message").build());
+        return options;
+    }
+
+    private static int intValue(CommandLine cmd, String option, int defaultValue) throws ParseException {
+        if ( !cmd.hasOption(option) ) {
+            return defaultValue;
+        }
+        String value = cmd.getOptionValue(option);
+        try {
+            int i = Integer.parseInt(value);
+            if ( i >= 1 ) {
+                return i;
+            }
+        }
+        catch (NumberFormatException e) {
+        }
+        throw new ParseException(String.format("Invalid value for --%s: %s", option, value));
+    }
+
+    /**
+     * The arguments meant for the server, which follow a {@code --}.
+     */
+    private static String[] serverArgs(String[] args) {
+        if ( args.length > 0 && args[0].equals("--") ) {
+            return Arrays.copyOfRange(args, 1, args.length);
+        }
+        return args;
+    }
+
+    /**
+     * Start the server and put it through every cycle.
+     *
+     * @return whether the server held on to nothing at every check
+     */
+    private boolean run(ServerConfig config) throws IOException {
+        BufferPool.get().enableLeakDetection();
+        InetAddress host = InetAddress.getLoopbackAddress();
+        ProtocolFilter filter = new ProtocolFilter(config);
+        server = new SimpleChatServer(config);
+        filter.start(server);
+        config.transport.create(config).start(host, port, filter);
+
+        logger.info("Soaking the {} transport in {} mode with {} cycles, {} at a time", config.transport,
+                config.processing, cycles, clients);
+        address = new InetSocketAddress(host, port);
+        selector = Selector.open();
+        try {
+            // Nothing tells an agent it has logged in until a customer does
+            connect(AGENT_NAME, "agent", -1);
+            if ( !loop(() -> !server.getAgents().isEmpty()) ) {
+                logger.error("The agent couldn't log in");
+                return false;
+            }
+            Peer customer = connect(CUSTOMER_NAME, "customer", -1);
+            if ( !loop(() -> customer.loggedIn) ) {
+                logger.error("The customer couldn't log in");
+                return false;
+            }
+
+            long start = System.nanoTime();
+            while (finished < cycles) {
+                int next = Math.min(cycles, (finished / checkEvery + 1) * checkEvery);
+                if ( !loop(() -> finished == next, next) ) {
+                    logger.error("Stalled after {} cycles", finished);
+                    return false;
+                }
+                if ( !check(start) ) {
+                    return false;
+                }
+            }
+            logger.info("Passed");
+            return true;
+        }
+        finally {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+
+    /**
+     * Wait for the server to let go of every client that has gone, while the
+     * two clients that stay go on reading, then log what it holds. A channel
+     * registered with a selector is only really closed once the selector
+     * next looks at its keys, which waiting takes care of too.
+     *
+     * @return false if it held on to anything
+     */
+    private boolean check(long start) throws IOException {
+        boolean settled = loop(() -> server.getUsers().size() == 2 && server.getUsernames().size() == 2
+                && server.getAgents().size() == 1 && server.getCustomers().size() == 1
+                && BufferPool.get().getOutstanding() == 0);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long elapsed = System.nanoTime() - start;
+        logger.info("{} cycles after {} ({}/s): {} users, {} usernames, {} agents, {} customers, "
+                + "{} buffers outstanding, {} MB of heap used", finished, seconds(elapsed), rate(finished, elapsed),
+                server.getUsers().size(), server.getUsernames().size(), server.getAgents().size(),
+                server.getCustomers().size(), BufferPool.get().getOutstanding(),
+                (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024));
+        if ( !settled ) {
+            logger.error("The server held on to clients that had gone, or to buffers");
+            for (User user : server.getUsers().values()) {
+                logger.error("Still there: {}", user);
+            }
+            BufferPool.get().logOutstanding();
+        }
+        return settled;
+    }
+
+    private boolean loop(BooleanSupplier done) throws IOException {
+        return loop(done, started);
+    }
+
+    /**
+     * Drive every connection until the condition is met, starting cycles up
+     * to the given one along the way.
+     *
+     * @return false if the soak stalled
+     */
+    private boolean loop(BooleanSupplier done, int until) throws IOException {
+        lastProgress = System.nanoTime();
+        while (!done.getAsBoolean()) {
+            while (started < until && inFlight < clients) {
+                int cycle = started++;
+                inFlight++;
+                connect(CLIENT_PREFIX + cycle, (cycle % AGENT_EVERY == 0) ? "agent" : "customer", cycle);
+            }
+            selector.select(100);
+            Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+                Peer peer = (Peer) key.attachment();
+                try {
+                    if ( key.isValid() && key.isConnectable() ) {
+                        peer.finishConnect();
+                    }
+                    if ( key.isValid() && key.isReadable() ) {
+                        peer.read();
+                    }
+                }
+                catch (IOException e) {
+                    logger.error("{} failed: {}", peer.name, e.getMessage());
+                    return false;
+                }
+            }
+            if ( System.nanoTime() - lastProgress > TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT_MILLIS) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Peer connect(String name, String role, int cycle) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        // Messages go both ways in quick succession, which Nagle's algorithm
+        // would hold up waiting for acknowledgements
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Peer peer = new Peer(name, role, cycle, channel);
+        if ( channel.connect(address) ) {
+            peer.key = channel.register(selector, 0, peer);
+            peer.finishConnect();
+        }
+        else {
+            peer.key = channel.register(selector, SelectionKey.OP_CONNECT, peer);
+        }
+        return peer;
+    }
+
+    private static String seconds(long nanos) {
+        return String.format("%.2f s", nanos / 1e9);
+    }
+
+    private static long rate(long count, long nanos) {
+        return (nanos == 0) ? 0 : count * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    /**
+     * A message with an ASCII length prefix, the framing every client starts
+     * with.
+     */
+    private static ByteBuffer frame(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + bytes.length);
+        frame.put(String.format("%04d", bytes.length).getBytes(StandardCharsets.US_ASCII)).put(bytes);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * The value of a string field in a message from the server, which
+     * escapes none of the names the soak uses.
+     */
+    private static String field(String json, String name) {
+        String start = "\"" + name + "\":\"";
+        int from = json.indexOf(start);
+        if ( from < 0 ) {
+            return null;
+        }
+        from += start.length();
+        return json.substring(from, json.indexOf('"', from));
+    }
+
+    /**
+     * One of the client connections, either one of the two that stay or the
+     * client of a cycle. Frames are small enough to always be written whole.
+     */
+    private class Peer {
+
+        private final String name;
+
+        private final String role;
+
+        // The cycle this client is for, or -1 for the two that stay
+        private final int cycle;
+
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        private ByteBuffer in = ByteBuffer.allocate(4096);
+
+        private boolean loggedIn;
+
+        Peer(String name, String role, int cycle, SocketChannel channel) {
+            this.name = name;
+            this.role = role;
+            this.cycle = cycle;
+            this.channel = channel;
+        }
+
+        void finishConnect() throws IOException {
+            if ( !channel.finishConnect() ) {
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            send(String.format("{\"type\":\"credentials\",\"username\":\"%s\",\"role\":\"%s\"}", name, role));
+        }
+
+        void send(String json) throws IOException {
+            ByteBuffer frame = frame(json);
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+
+        void read() throws IOException {
+            if ( channel.read(in) < 0 ) {
+                throw new IOException("Closed by the server");
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = Integer.parseInt(new String(in.array(), in.position(), 4, StandardCharsets.US_ASCII));
+                if ( in.remaining() < 4 + length ) {
+                    break;
+                }
+                String json = new String(in.array(), in.position() + 4, length, StandardCharsets.UTF_8);
+                in.position(in.position() + 4 + length);
+                received(field(json, "type"), json);
+                if ( !key.isValid() ) {
+                    return;
+                }
+            }
+            in.compact();
+        }
+
+        private void received(String type, String json) throws IOException {
+            if ( cycle < 0 ) {
+                if ( "AgentsPresent".equals(type) ) {
+                    loggedIn = true;
+                }
+                else if ( "customerMessage".equals(type) ) {
+                    // Reply to the customer with its own text
+                    send(String.format("{\"type\":\"message\",\"messageText\":\"%s\",\"to\":\"%s\"}",
+                            field(json, "messageText"), field(json, "sender")));
+                }
+                return;
+            }
+            if ( "customer".equals(role) && "AgentsPresent".equals(type) ) {
+                send(String.format("{\"type\":\"message\",\"messageText\":\"from %s\"}", name));
+            }
+            else if ( ("customer".equals(role) && "agentMessage".equals(type))
+                    || ("agent".equals(role) && "connected".equals(type)) ) {
+                disconnect();
+            }
+        }
+
+        private void disconnect() throws IOException {
+            if ( cycle % CLEAN_CLOSE_EVERY != 0 ) {
+                channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            }
+            key.cancel();
+            channel.close();
+            inFlight--;
+            finished++;
+            lastProgress = System.nanoTime();
+        }
+
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.kaazing.demo.simplechat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes received from a connection into messages. Every message
+ * is preceded by its length, as {@link User#LENGTH_PREFIX_LENGTH} ASCII
+ * digits or, once the client has switched to binary framing, as a 4 byte
+ * big-endian integer. Both the prefix and the message may arrive spread
+ * over several reads, so the decoder keeps its state between calls.
+ * <p>
+ * An invalid length prefix leaves no way to tell where the next message
+ * starts, so the decoder fails for good and ignores whatever follows. The
+ * connection should be closed.
+ */
+public class FrameDecoder {
+
+    public interface FrameHandler {
+
+        /**
+         * Called for each complete message. The payload is only valid for
+         * the duration of the call.
+         */
+        void onFrame(ByteBuffer payload);
+
+    }
+
+    private FrameHandler handler;
+
+    private Framing framing = Framing.ascii;
+
+    /**
+     * The largest message accepted with binary framing.
+     */
+    private int maxMessageSize;
+
+    /**
+     * The number of length prefix bytes received so far.
+     */
+    private int prefixBytes;
+
+    /**
+     * The message size, accumulated one prefix byte at a time.
+     */
+    private int messageSize;
+
+    /**
+     * The message being reassembled when it spans more than one read.
+     */
+    private Message currentMessage;
+
+    /**
+     * Set once a length prefix was invalid.
+     */
+    private boolean failed;
+
+    public FrameDecoder(FrameHandler handler, int maxMessageSize) {
+        this.handler = handler;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Change how the length of the messages that follow is given. This may
+     * be called from the handler, and applies from the next message on.
+     */
+    public void setFraming(Framing framing) {
+        this.framing = framing;
+    }
+
+    /**
+     * Decode all of the remaining bytes in the buffer, calling the handler
+     * for every message completed by them.
+     *
+     * @throws IllegalArgumentException
+     *             if a length prefix is invalid, after which nothing more is
+     *             decoded
+     */
+    public void decode(ByteBuffer bytes) {
+        if ( failed ) {
+            bytes.position(bytes.limit());
+            return;
+        }
+        while (bytes.hasRemaining()) {
+            if ( prefixBytes < User.LENGTH_PREFIX_LENGTH ) {
+                byte b = bytes.get();
+                if ( framing == Framing.binary ) {
+                    messageSize = (messageSize << 8) | (b & 0xff);
+                }
+                else if ( b >= '0' && b <= '9' ) {
+                    messageSize = messageSize * 10 + (b - '0');
+                }
+                else {
+                    fail();
+                    throw new IllegalArgumentException(String.format("Invalid length prefix byte: 0x%02x", b));
+                }
+                prefixBytes++;
+                if ( prefixBytes < User.LENGTH_PREFIX_LENGTH ) {
+                    continue;
+                }
+                if ( messageSize < 0 || messageSize > maxMessageSize ) {
+                    int size = messageSize;
+                    fail();
+                    throw new IllegalArgumentException(String.format("Message of %d bytes is too long", size & 0xffffffffL));
+                }
+                if ( messageSize > 0 ) {
+                    continue;
+                }
+            }
+
+            if ( currentMessage == null && bytes.remaining() >= messageSize ) {
+                // The whole message is in this buffer, so hand out a view of
+                // it rather than copying.
+                ByteBuffer payload = bytes.slice();
+                payload.limit(messageSize);
+                bytes.position(bytes.position() + messageSize);
+                reset();
+                handler.onFrame(payload);
+                continue;
+            }
+
+            // Store what we have until more bytes arrive.
+            if ( currentMessage == null ) {
+                currentMessage = new Message(messageSize);
+            }
+            currentMessage.addBytes(bytes);
+
+            if ( currentMessage.isComplete() ) {
+                Message message = currentMessage;
+                currentMessage = null;
+                reset();
+                try {
+                    handler.onFrame(message.getPayload());
+                }
+                finally {
+                    message.release();
+                }
+            }
+        }
+    }
+
+    private void fail() {
+        reset();
+        failed = true;
+    }
+
+    /**
+     * Discard any partially received message and start over with a new
+     * length prefix.
+     */
+    public void reset() {
+        prefixBytes = 0;
+        messageSize = 0;
+        if ( currentMessage != null ) {
+            currentMessage.release();
+            currentMessage = null;
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package com.kaazing.demo.simplechat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.kaazing.demo.simplechat.transport.Frame;
+
+/**
+ * Writes the JSON messages sent to chat clients, together with their length
+ * prefix, straight into a byte buffer. For example:
+ *
+ * <pre>
+ * Frame frame = FrameEncoder.get().begin("disconnected").field("username", "joe").end();
+ * </pre>
+ *
+ * Each thread reuses its own encoder and scratch buffer, and the frame
+ * returned is copied into a pooled buffer, so encoding allocates next to
+ * nothing once the pool is warm. A message sent to clients using different
+ * {@link Framing} is encoded once, and {@link #end(Framing)} is called for
+ * each framing needed.
+ */
+public class FrameEncoder {
+
+    private static final ThreadLocal<FrameEncoder> ENCODERS = ThreadLocal.withInitial(FrameEncoder::new);
+
+    /**
+     * The largest message the ASCII length prefix can describe.
+     */
+    public static final int MAX_MESSAGE_SIZE = (int) Math.pow(10, User.LENGTH_PREFIX_LENGTH) - 1;
+
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+    /**
+     * The end of the message once it's complete, or -1 while fields may
+     * still be added.
+     */
+    private int messageEnd = -1;
+
+    /**
+     * The encoder for the calling thread.
+     */
+    public static FrameEncoder get() {
+        return ENCODERS.get();
+    }
+
+    /**
+     * Start a new message of the given type, discarding anything written
+     * since the last call to {@link #end()}.
+     */
+    public FrameEncoder begin(String type) {
+        buffer.clear();
+        messageEnd = -1;
+        // Leave room for the length prefix, which is filled in once the
+        // length is known.
+        buffer.position(User.LENGTH_PREFIX_LENGTH);
+        ensureCapacity(8);
+        buffer.put((byte) '{');
+        writeString("type");
+        buffer.put((byte) ':');
+        writeString(type);
+        return this;
+    }
+
+    public FrameEncoder field(String name, String value) {
+        ensureCapacity(2);
+        buffer.put((byte) ',');
+        writeString(name);
+        buffer.put((byte) ':');
+        writeString(value);
+        return this;
+    }
+
+    /**
+     * Finish the message with an ASCII length prefix.
+     *
+     * @see #end(Framing)
+     */
+    public Frame end() {
+        return end(Framing.ascii);
+    }
+
+    /**
+     * Finish the message and fill in its length prefix, which counts the
+     * UTF-8 bytes of the message. This may be called again for another
+     * framing, until the next message is begun.
+     *
+     * @return a new frame holding the prefix and message, ready to be
+     *         written, which the caller must release
+     * @throws IllegalArgumentException
+     *             if the message is too long for the framing
+     */
+    public Frame end(Framing framing) {
+        if ( messageEnd < 0 ) {
+            ensureCapacity(1);
+            buffer.put((byte) '}');
+            messageEnd = buffer.position();
+        }
+
+        int length = messageEnd - User.LENGTH_PREFIX_LENGTH;
+        if ( framing == Framing.binary ) {
+            buffer.putInt(0, length);
+        }
+        else {
+            if ( length > MAX_MESSAGE_SIZE ) {
+                throw new IllegalArgumentException(String.format("Message of %d bytes is too long for the length prefix", length));
+            }
+            for (int i = User.LENGTH_PREFIX_LENGTH - 1; i >= 0; i--) {
+                buffer.put(i, (byte) ('0' + length % 10));
+                length /= 10;
+            }
+        }
+
+        ByteBuffer message = buffer.duplicate();
+        message.position(0).limit(messageEnd);
+        Frame frame = Frame.allocate(messageEnd);
+        frame.getBuffer().put(message).flip();
+        return frame;
+    }
+
+    /**
+     * The message being encoded, without its length prefix.
+     */
+    @Override
+    public String toString() {
+        int end = (messageEnd < 0) ? buffer.position() : messageEnd;
+        return new String(buffer.array(), User.LENGTH_PREFIX_LENGTH, end - User.LENGTH_PREFIX_LENGTH, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a quoted JSON string, escaping as needed and encoding as UTF-8.
+     */
+    private void writeString(String str) {
+        if ( str == null ) {
+            ensureCapacity(4);
+            buffer.put((byte) 'n').put((byte) 'u').put((byte) 'l').put((byte) 'l');
+            return;
+        }
+
+        // No character takes more than six bytes once escaped or encoded.
+        ensureCapacity(str.length() * 6 + 2);
+        buffer.put((byte) '"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if ( c == '"' || c == '\\' ) {
+                buffer.put((byte) '\\').put((byte) c);
+            }
+            else if ( c < 0x20 ) {
+                switch (c) {
+                case '\b':
+                    buffer.put((byte) '\\').put((byte) 'b');
+                    break;
+                case '\f':
+                    buffer.put((byte) '\\').put((byte) 'f');
+                    break;
+                case '\n':
+                    buffer.put((byte) '\\').put((byte) 'n');
+                    break;
+                case '\r':
+                    buffer.put((byte) '\\').put((byte) 'r');
+                    break;
+                case '\t':
+                    buffer.put((byte) '\\').put((byte) 't');
+                    break;
+                default:
+                    buffer.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0');
+                    buffer.put(HEX[c >> 4]).put(HEX[c & 0xf]);
+                }
+            }
+            else if ( c < 0x80 ) {
+                buffer.put((byte) c);
+            }
+            else if ( c < 0x800 ) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+            else if ( Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1)) ) {
+                int codePoint = Character.toCodePoint(c, str.charAt(++i));
+                buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+            }
+            else if ( Character.isSurrogate(c) ) {
+                // An unpaired surrogate can't be encoded, replace it as
+                // String.getBytes() does.
+                buffer.put((byte) '?');
+            }
+            else {
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        buffer.put((byte) '"');
+    }
+
+    private void ensureCapacity(int needed) {
+        if ( buffer.remaining() < needed ) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.kaazing.demo.simplechat;
+
+/**
+ * How the length of each message is given, ahead of the message. A client
+ * starts with ascii framing and may switch to binary framing in its
+ * credentials message.
+ */
+public enum Framing {
+
+    /**
+     * {@link User#LENGTH_PREFIX_LENGTH} ASCII digits, which limits messages
+     * to {@link FrameEncoder#MAX_MESSAGE_SIZE} bytes.
+     */
+    ascii,
+
+    /**
+     * A 4 byte big-endian length, for messages up to the server's maximum
+     * message size.
+     */
+    binary
+
+}
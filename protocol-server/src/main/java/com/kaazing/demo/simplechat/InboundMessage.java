@@ -0,0 +1,397 @@
+package com.kaazing.demo.simplechat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the JSON messages sent by chat clients, such as
+ * <code>{"type":"message","messageText":"Hello","to":"joe"}</code>.
+ * <p>
+ * Only the fields the server uses are extracted, straight from the payload
+ * bytes. No object tree is built and no string is created for the message
+ * as a whole; the type is matched byte for byte, and a String is only
+ * allocated for each known field value. Any other fields are skipped.
+ * <p>
+ * An instance is reused for every message of a user, so it is not thread
+ * safe.
+ */
+public class InboundMessage {
+
+    public enum Type {
+        credentials, message, unknown
+    }
+
+    private static final byte[] TYPE = ascii("type");
+    private static final byte[] USERNAME = ascii("username");
+    private static final byte[] ROLE = ascii("role");
+    private static final byte[] MESSAGE_TEXT = ascii("messageText");
+    private static final byte[] TO = ascii("to");
+    private static final byte[] FRAMING = ascii("framing");
+
+    private static final byte[] CREDENTIALS = ascii("credentials");
+    private static final byte[] MESSAGE = ascii("message");
+
+    private Type type;
+
+    /**
+     * The type as sent, only kept when it isn't one we know.
+     */
+    private String unknownType;
+
+    private String username;
+    private String role;
+    private String messageText;
+    private String to;
+    private String framing;
+
+    /**
+     * The payload being read, and the index of the next byte in it.
+     */
+    private ByteBuffer bytes;
+    private int pos;
+
+    /**
+     * Scratch space for decoding string values, grown as needed.
+     */
+    private char[] chars = new char[256];
+
+    /**
+     * Read the fields of a message, replacing those of the previous one.
+     * The position of the payload is not changed.
+     *
+     * @throws IllegalArgumentException
+     *             if the payload isn't a well formed JSON object
+     */
+    public void read(ByteBuffer payload) {
+        type = null;
+        unknownType = null;
+        username = null;
+        role = null;
+        messageText = null;
+        to = null;
+        framing = null;
+
+        bytes = payload;
+        pos = payload.position();
+        try {
+            readObject();
+        }
+        finally {
+            bytes = null;
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getUnknownType() {
+        return unknownType;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public String getMessageText() {
+        return messageText;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    /**
+     * The framing the client asks for in its credentials, if any.
+     */
+    public String getFraming() {
+        return framing;
+    }
+
+    private void readObject() {
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if ( peek() == '}' ) {
+            pos++;
+            return;
+        }
+
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            int keyStart = pos;
+            int keyEnd = skipString();
+
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            if ( peek() != '"' ) {
+                // None of the fields we want are anything but strings.
+                skipValue();
+            }
+            else if ( matches(keyStart, keyEnd, TYPE) ) {
+                readType();
+            }
+            else if ( matches(keyStart, keyEnd, USERNAME) ) {
+                username = readString();
+            }
+            else if ( matches(keyStart, keyEnd, ROLE) ) {
+                role = readString();
+            }
+            else if ( matches(keyStart, keyEnd, MESSAGE_TEXT) ) {
+                messageText = readString();
+            }
+            else if ( matches(keyStart, keyEnd, TO) ) {
+                to = readString();
+            }
+            else if ( matches(keyStart, keyEnd, FRAMING) ) {
+                framing = readString();
+            }
+            else {
+                skipValue();
+            }
+
+            skipWhitespace();
+            byte b = next();
+            if ( b == '}' ) {
+                return;
+            }
+            if ( b != ',' ) {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private void readType() {
+        int start = pos + 1;
+        pos = start;
+        int end = skipString();
+        if ( matches(start, end, CREDENTIALS) ) {
+            type = Type.credentials;
+        }
+        else if ( matches(start, end, MESSAGE) ) {
+            type = Type.message;
+        }
+        else {
+            type = Type.unknown;
+            pos = start - 1;
+            unknownType = readString();
+        }
+    }
+
+    /**
+     * Decode the string starting at the current position, which is its
+     * opening quote, unescaping and decoding UTF-8 as we go.
+     */
+    private String readString() {
+        expect('"');
+        int length = 0;
+        while (true) {
+            int c = next() & 0xff;
+            if ( c == '"' ) {
+                return new String(chars, 0, length);
+            }
+            if ( length + 2 > chars.length ) {
+                char[] larger = new char[chars.length * 2];
+                System.arraycopy(chars, 0, larger, 0, length);
+                chars = larger;
+            }
+            if ( c == '\\' ) {
+                chars[length++] = readEscape();
+            }
+            else if ( c < 0x80 ) {
+                chars[length++] = (char) c;
+            }
+            else {
+                int codePoint = readUtf8(c);
+                if ( Character.isBmpCodePoint(codePoint) ) {
+                    chars[length++] = (char) codePoint;
+                }
+                else {
+                    chars[length++] = Character.highSurrogate(codePoint);
+                    chars[length++] = Character.lowSurrogate(codePoint);
+                }
+            }
+        }
+    }
+
+    private char readEscape() {
+        byte b = next();
+        switch (b) {
+        case '"':
+        case '\\':
+        case '/':
+            return (char) b;
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int c = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(next(), 16);
+                if ( digit < 0 ) {
+                    throw error("Invalid unicode escape");
+                }
+                c = (c << 4) | digit;
+            }
+            return (char) c;
+        default:
+            throw error("Invalid escape");
+        }
+    }
+
+    /**
+     * Decode the rest of a multi-byte UTF-8 sequence given its first byte.
+     * Malformed sequences decode to the replacement character.
+     */
+    private int readUtf8(int first) {
+        int count;
+        int codePoint;
+        if ( (first & 0xe0) == 0xc0 ) {
+            count = 1;
+            codePoint = first & 0x1f;
+        }
+        else if ( (first & 0xf0) == 0xe0 ) {
+            count = 2;
+            codePoint = first & 0x0f;
+        }
+        else if ( (first & 0xf8) == 0xf0 ) {
+            count = 3;
+            codePoint = first & 0x07;
+        }
+        else {
+            return 0xfffd;
+        }
+        for (int i = 0; i < count; i++) {
+            int b = peek() & 0xff;
+            if ( (b & 0xc0) != 0x80 ) {
+                return 0xfffd;
+            }
+            pos++;
+            codePoint = (codePoint << 6) | (b & 0x3f);
+        }
+        if ( codePoint > Character.MAX_CODE_POINT ) {
+            return 0xfffd;
+        }
+        return codePoint;
+    }
+
+    /**
+     * Skip over a string whose opening quote has already been read.
+     *
+     * @return the index of its closing quote
+     */
+    private int skipString() {
+        while (true) {
+            byte b = next();
+            if ( b == '"' ) {
+                return pos - 1;
+            }
+            if ( b == '\\' ) {
+                next();
+            }
+        }
+    }
+
+    private void skipValue() {
+        byte b = peek();
+        if ( b == '"' ) {
+            pos++;
+            skipString();
+        }
+        else if ( b == '{' || b == '[' ) {
+            // Skip nested objects and arrays by counting brackets, ignoring
+            // any that are inside strings.
+            int depth = 0;
+            do {
+                b = next();
+                if ( b == '"' ) {
+                    skipString();
+                }
+                else if ( b == '{' || b == '[' ) {
+                    depth++;
+                }
+                else if ( b == '}' || b == ']' ) {
+                    depth--;
+                }
+            } while (depth > 0);
+        }
+        else {
+            // A number, true, false or null
+            int start = pos;
+            while (pos < bytes.limit()) {
+                b = bytes.get(pos);
+                if ( b == ',' || b == '}' || b == ']' || isWhitespace(b) ) {
+                    break;
+                }
+                pos++;
+            }
+            if ( pos == start ) {
+                throw error("Expected a value");
+            }
+        }
+    }
+
+    private boolean matches(int start, int end, byte[] expected) {
+        if ( end - start != expected.length ) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if ( bytes.get(start + i) != expected[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (pos < bytes.limit() && isWhitespace(bytes.get(pos))) {
+            pos++;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private void expect(char c) {
+        if ( next() != c ) {
+            throw error(String.format("Expected '%c'", c));
+        }
+    }
+
+    private byte peek() {
+        if ( pos >= bytes.limit() ) {
+            throw error("Unexpected end of message");
+        }
+        return bytes.get(pos);
+    }
+
+    private byte next() {
+        byte b = peek();
+        pos++;
+        return b;
+    }
+
+    private IllegalArgumentException error(String reason) {
+        return new IllegalArgumentException(String.format("%s at offset %d", reason, pos - bytes.position()));
+    }
+
+    private static byte[] ascii(String str) {
+        return str.getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
@@ -1,67 +1,111 @@
 package com.kaazing.demo.simplechat;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+
+import com.kaazing.demo.simplechat.transport.BufferPool;
 
 public class Message {
 
+    /**
+     * The most bytes taken from the pool before any have arrived. A client
+     * may declare a message far larger than it ever sends, so the buffer
+     * only grows as fragments arrive.
+     */
+    private static final int INITIAL_SIZE = 4096;
+
     /**
      * The total size of the message as given in the message prefix length.
      */
     private int messageSize;
-    
-    private ArrayList<byte[]> bytesList;
 
-    public Message(int messageSize, byte[] initialBytes) {
+    /**
+     * Taken from the pool and filled as fragments arrive, then swapped for
+     * one twice as large whenever it is full, up to the size of the
+     * message. Its position is the number of bytes received so far.
+     */
+    private ByteBuffer bytes;
+
+    public Message(int messageSize) {
         this.messageSize = messageSize;
-        bytesList = new ArrayList<byte[]>();
-        bytesList.add(initialBytes);
+        bytes = BufferPool.get().acquire(Math.min(messageSize, INITIAL_SIZE));
     }
 
     public int getMessageSize() {
         return messageSize;
     }
 
-    public void addBytes(byte[] bytes) {
-        bytesList.add(bytes);
+    /**
+     * Copy as many bytes as the message still needs from the buffer,
+     * leaving any bytes of the next message in it.
+     */
+    public void addBytes(ByteBuffer src) {
+        int count = Math.min(src.remaining(), getRemaining());
+        if ( count > bytes.remaining() ) {
+            grow(bytes.position() + count);
+        }
+        int limit = src.limit();
+        src.limit(src.position() + count);
+        bytes.put(src);
+        src.limit(limit);
+    }
+
+    /**
+     * Move the bytes received so far to a buffer that holds at least the
+     * given number of bytes.
+     */
+    private void grow(int size) {
+        int capacity = (int) Math.min(Math.max((long) bytes.limit() * 2, size), messageSize);
+        ByteBuffer larger = BufferPool.get().acquire(capacity);
+        bytes.flip();
+        larger.put(bytes);
+        BufferPool.get().release(bytes);
+        bytes = larger;
     }
 
     /**
      * The current length of the bytes received so far
      */
     public int getLength() {
-        int len = 0;
-        for (byte[] bytes : bytesList) {
-            len += bytes.length;
-        }
-        return len;
+        return bytes.position();
     }
 
-    public byte[] getAllBytes() {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        for (byte[] bytes : bytesList) {
-            try {
-                outputStream.write(bytes);
-            }
-            catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+    /**
+     * The number of bytes still needed to complete the message
+     */
+    public int getRemaining() {
+        return messageSize - bytes.position();
+    }
+
+    public boolean isComplete() {
+        return bytes.position() == messageSize;
+    }
 
-        return outputStream.toByteArray();
+    /**
+     * A view of the bytes received so far.
+     */
+    public ByteBuffer getPayload() {
+        ByteBuffer payload = bytes.duplicate();
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Give the bytes back to the pool. The message and any payload taken
+     * from it must not be used afterwards.
+     */
+    public void release() {
+        BufferPool.get().release(bytes);
+        bytes = null;
     }
 
     @Override
     public String toString() {
-        return String.format("[%s] (%d bytes)", Util.bytesToString(getAllBytes()), getLength());
+        return String.format("[%s] (%d bytes)", Util.bytesToString(getPayload()), getLength());
     }
     
     // For debugging
     public void print() {
-        for (byte[] bytes : bytesList) {
-            System.out.println(String.format("  => [%s] %d bytes", Util.bytesToString(bytes), bytes.length));
-        }
+        System.out.println(String.format("  => [%s] %d of %d bytes", Util.bytesToString(getPayload()), getLength(), messageSize));
     }
 
 }
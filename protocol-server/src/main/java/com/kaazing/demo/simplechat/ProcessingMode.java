@@ -0,0 +1,21 @@
+package com.kaazing.demo.simplechat;
+
+/**
+ * Which thread decodes and routes the bytes read from a connection.
+ */
+public enum ProcessingMode {
+
+    /**
+     * Hand the bytes to a worker thread of the {@link ProtocolFilter}, so a
+     * slow message never holds up the reactor.
+     */
+    queued,
+
+    /**
+     * Process the bytes on the reactor thread that read them, saving the
+     * handoff to a worker. Frames sent to connections of the same reactor
+     * are written straight away.
+     */
+    inline
+
+}
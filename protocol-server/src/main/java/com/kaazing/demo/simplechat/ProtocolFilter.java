@@ -1,95 +1,226 @@
 package com.kaazing.demo.simplechat;
 
-import java.io.IOException;
-import java.net.SocketAddress;
-import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.ByteBuffer;
 import java.util.Map;
-
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.agrona.MutableDirectBuffer;
+import org.agrona.collections.Int2ObjectHashMap;
+import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.MessageHandler;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.agrona.concurrent.ringbuffer.ManyToOneRingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBufferDescriptor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.kaazing.demo.simplechat.nio.ServerDataEvent;
+import com.kaazing.demo.simplechat.transport.Connection;
+import com.kaazing.demo.simplechat.transport.ConnectionHandler;
 
-public class ProtocolFilter implements Runnable {
+/**
+ * Turns the bytes read from connections into the messages of their users.
+ * In queued mode the bytes are handed to worker threads, and in inline mode
+ * they are processed on the transport thread that read them.
+ */
+public class ProtocolFilter implements ConnectionHandler {
         
     private static final Logger LOGGER = LogManager.getLogger(ProtocolFilter.class.getName());
 
-    private List<ServerDataEvent> queue = new LinkedList<ServerDataEvent>();
+    /**
+     * The size of each lane's ring buffer, which must be a power of two.
+     */
+    private static final int RING_CAPACITY = 1024 * 1024;
+
+    /**
+     * The most records a worker handles before checking in with its idle
+     * strategy.
+     */
+    private static final int READ_BATCH_SIZE = 64;
+
+    private static final UnsafeBuffer EMPTY = new UnsafeBuffer(new byte[0]);
+
+    // A view of the bytes being handed to a lane, for each transport thread
+    private static final ThreadLocal<UnsafeBuffer> SOURCES = ThreadLocal.withInitial(() -> new UnsafeBuffer(EMPTY));
+
+    private boolean inline;
+
+    private WorkerIdleStrategy idleStrategy;
 
-    Map<SocketAddress, User> users;
+    private SimpleChatServer server;
 
-    public void processData(SimpleChatServer server, SocketChannel socket, byte[] data, int count) {
-        users = server.getUsers();
-        byte[] dataCopy = new byte[count];
-        System.arraycopy(data, 0, dataCopy, 0, count);
-        synchronized (queue) {
-            queue.add(new ServerDataEvent(server, socket, dataCopy));
-            queue.notify();
+    /**
+     * Each connection is always handled by the same lane, which keeps the
+     * bytes of a user in order while different users are processed in
+     * parallel.
+     */
+    private Lane[] lanes;
+
+    public ProtocolFilter(ServerConfig config) {
+        inline = (config.processing == ProcessingMode.inline);
+        idleStrategy = config.idleStrategy;
+        lanes = new Lane[inline ? 0 : config.workers];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
         }
     }
 
-    public void run() {
-        ServerDataEvent dataEvent;
-
-        while (true) {
-            // Wait for data to become available
-            synchronized (queue) {
-                while (queue.isEmpty()) {
-                    try {
-                        queue.wait();
-                    }
-                    catch (InterruptedException e) {
-                    }
-                }
-                dataEvent = (ServerDataEvent) queue.remove(0);
-
-                User user = null;
-
-                try {
-                    SocketAddress remoteAddress = dataEvent.socket.getRemoteAddress();
-                    user = users.get(remoteAddress);
-                    if ( user == null ) {
-                        user = new User(dataEvent.server, dataEvent.socket);
-//                        logger.info(String.format("%s New user sent bytes", user.getLoggerId()));
-                        users.put(remoteAddress, user);
-//                        user.sendBlah(); // TODO: Delete
-                    }
-                    else {
-                        LOGGER.trace(String.format("%s Received bytes", user.getLoggerId()));
-                    }
-                }
-                catch (IOException e) {
-                    LOGGER.error(e);
-                }
+    /**
+     * Start the worker threads, if any, which process the bytes read from
+     * the connections of the server.
+     */
+    public void start(SimpleChatServer server) {
+        this.server = server;
+        for (int i = 0; i < lanes.length; i++) {
+            new Thread(lanes[i], String.format("worker-%d", i + 1)).start();
+        }
+    }
 
-                LOGGER.debug(String.format("%s Bytes received: %s", user.getLoggerId(), dataEvent.getDataAsString()));
-                user.processNewBytes(dataEvent.data);
+    public void connected(Connection connection) {
+        if ( !inline ) {
+            laneOf(connection).registrations.offer(connection);
+        }
+    }
 
+    /**
+     * Process the bytes read from a connection right away in inline mode, or
+     * else copy them into the ring buffer of the connection's lane. No bytes
+     * at all are ignored, as an empty record means the connection closed.
+     */
+    public void received(Connection connection, ByteBuffer data) {
+        if ( !data.hasRemaining() ) {
+            return;
+        }
+        if ( inline ) {
+            try {
+                process(server, connection, data);
+            }
+            catch (Exception e) {
+                LOGGER.error("Error processing data", e);
             }
-/*
-            String messageStr = "{\"screenData\":\"abcdefghijklmnopqrstuvwxyz\"}";
-            String messageLen = padLeftZeros(String.valueOf(messageStr.length()), 4);
-            byte[] message = (messageLen + messageStr).getBytes(StandardCharsets.UTF_8);
+            return;
+        }
+        UnsafeBuffer source = SOURCES.get();
+        source.wrap(data);
+        laneOf(connection).write(connection.getId(), source, data.position(), data.remaining());
+    }
 
-            byte[] m1 = Arrays.copyOfRange(message, 0, 25);
-            byte[] m2 = Arrays.copyOfRange(message, 25, message.length);
+    /**
+     * Clean up after the user of a closed connection right away in inline
+     * mode, or else once the worker has processed every byte read from the
+     * connection.
+     */
+    public void closed(Connection connection) {
+        if ( inline ) {
+            processClose(connection);
+            return;
+        }
+        laneOf(connection).write(connection.getId(), EMPTY, 0, 0);
+    }
 
-            dataEvent.server.send(dataEvent.socket, m1);
-            try {
-                // Force data to be sent separately to ensure multiple websocket frames
-                Thread.sleep(10);
+    private void processClose(Connection connection) {
+        User user = server.getUsers().get(connection);
+        if ( user == null ) {
+            return;
+        }
+        try {
+            user.handleConnectionClose();
+        }
+        catch (Exception e) {
+            LOGGER.error("Error cleaning up after a closed connection", e);
+        }
+    }
+
+    private Lane laneOf(Connection connection) {
+        return lanes[connection.getId() % lanes.length];
+    }
+
+    private void process(SimpleChatServer server, Connection connection, ByteBuffer data) {
+        Map<Connection, User> users = server.getUsers();
+        User user = users.get(connection);
+        if ( user == null ) {
+            user = new User(server, connection);
+            users.put(connection, user);
+        }
+        else {
+            LOGGER.trace("{} Received bytes", user.getLoggerId());
+        }
+
+        if ( LOGGER.isDebugEnabled() ) {
+            LOGGER.debug("{} Bytes received: {}", user.getLoggerId(), Util.bytesToString(data));
+        }
+        user.processNewBytes(data);
+    }
+
+    /**
+     * A single worker thread draining its own ring buffer, which any
+     * transport thread may write to without locking. The type of each
+     * record is the id of a connection and its contents are the bytes read
+     * from it, so no event object is created per read. An empty record means
+     * the connection was closed.
+     */
+    private class Lane implements Runnable, MessageHandler {
+
+        private RingBuffer ring = new ManyToOneRingBuffer(
+                new UnsafeBuffer(ByteBuffer.allocateDirect(RING_CAPACITY + RingBufferDescriptor.TRAILER_LENGTH)));
+
+        // A view of the ring's memory for handing out the bytes of a record
+        private ByteBuffer ringView = ring.buffer().byteBuffer().duplicate();
+
+        // New connections, moved into the map below by the worker
+        private Queue<Connection> registrations = new ConcurrentLinkedQueue<Connection>();
+
+        // The connections of this lane by id, only used by the worker
+        private Int2ObjectHashMap<Connection> connections = new Int2ObjectHashMap<Connection>();
+
+        /**
+         * Write a record, waiting for the worker to make room if the ring is
+         * full. The transport thread then stops reading until the worker
+         * catches up.
+         */
+        void write(int id, UnsafeBuffer source, int index, int length) {
+            while (!ring.write(id, source, index, length)) {
+                Thread.yield();
+            }
+        }
+
+        public void run() {
+            IdleStrategy idle = idleStrategy.newIdleStrategy();
+            while (true) {
+                idle.idle(ring.read(this, READ_BATCH_SIZE));
+            }
+        }
+
+        public void onMessage(int id, MutableDirectBuffer buffer, int index, int length) {
+            Connection connection = connections.get(id);
+            if ( connection == null ) {
+                Connection registered;
+                while ((registered = registrations.poll()) != null) {
+                    connections.put(registered.getId(), registered);
+                }
+                connection = connections.get(id);
+                if ( connection == null ) {
+                    LOGGER.error("Bytes from unknown connection {}", id);
+                    return;
+                }
             }
-            catch (InterruptedException e) {
-                e.printStackTrace();
+
+            if ( length == 0 ) {
+                connections.remove(id);
+                processClose(connection);
+                return;
             }
-            dataEvent.server.send(dataEvent.socket, m2);
 
-            // logger.info(String.format("Sending %s", new String(aaa, StandardCharsets.UTF_8)));
-             */
+            ringView.limit(index + length).position(index);
+            try {
+                process(server, connection, ringView);
+            }
+            catch (Exception e) {
+                LOGGER.error("Error processing data", e);
+            }
         }
+
     }
 
-    
 }
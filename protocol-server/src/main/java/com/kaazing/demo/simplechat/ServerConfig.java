@@ -0,0 +1,203 @@
+package com.kaazing.demo.simplechat;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.kaazing.demo.simplechat.transport.SlowConsumerPolicy;
+
+/**
+ * The settings the server is started with, taken from the command line.
+ */
+public class ServerConfig {
+
+    public TransportType transport = TransportType.nio;
+
+    // The most connections waiting to be accepted. The kernel caps it, on
+    // Linux at net.core.somaxconn.
+    public int backlog = 1024;
+
+    // The port browsers may connect to directly with WebSockets, or zero
+    // for none
+    public int webSocketPort;
+
+    // The path of a Unix domain socket a gateway on the same host may
+    // connect to instead of the TCP port, or null for none
+    public String unixSocket;
+
+    // Offer permessage-deflate to WebSocket clients, for messages of at
+    // least the threshold in bytes, with the most window bits asked of
+    // clients, and whether each message is compressed on its own
+    public boolean webSocketDeflate;
+    public int deflateThreshold = 256;
+    public int deflateClientWindowBits = 15;
+    public boolean deflateNoContextTakeover;
+
+    // Number of reactor threads serving connections
+    public int reactors = 1;
+
+    // Number of worker threads processing messages
+    public int workers = 1;
+
+    // Bytes queued for a connection above which the slow consumer policy
+    // applies, and below which it is lifted again
+    public int highWatermark = 4 * 1024 * 1024;
+    public int lowWatermark = 1024 * 1024;
+
+    public SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.disconnect;
+
+    public ProcessingMode processing = ProcessingMode.queued;
+
+    // How the workers wait for bytes to process
+    public WorkerIdleStrategy idleStrategy = WorkerIdleStrategy.backoff;
+
+    // The largest message accepted from clients using binary framing
+    public int maxMessageSize = 1024 * 1024;
+
+    // Seconds a connection has from being accepted to log in. Zero means no
+    // limit.
+    public int loginTimeout = 30;
+
+    // Seconds a customer or an agent may stay silent before being
+    // disconnected. Clients don't have to send anything while nobody chats,
+    // so these are off unless asked for. Without them, a user whose
+    // connection is lost without the server noticing, say when a gateway
+    // restarts, keeps its username until TCP gives up on the connection,
+    // and can't log back in with it until then.
+    public int customerIdleTimeout = 0;
+    public int agentIdleTimeout = 0;
+
+    // Track pooled buffers to find any that are never released
+    public boolean debugBuffers;
+
+    public static Options options() {
+        Options options = new Options();
+        options.addOption(Option.builder().longOpt("transport").hasArg().argName("type")
+                .desc("Transport serving connections: nio, epoll (Linux only) or blocking, with a thread per connection (default nio)").build());
+        options.addOption(Option.builder().longOpt("ws-port").hasArg().argName("port")
+                .desc("Port to accept WebSocket connections from browsers on as well, nio transport only (default none)").build());
+        options.addOption(Option.builder().longOpt("unix-socket").hasArg().argName("path")
+                .desc("Unix domain socket to accept connections on as well, nio transport on Java 16 or later only (default none)").build());
+        options.addOption(Option.builder().longOpt("ws-deflate")
+                .desc("Compress WebSocket messages with permessage-deflate for clients that offer it").build());
+        options.addOption(Option.builder().longOpt("ws-deflate-threshold").hasArg().argName("bytes")
+                .desc("Smallest WebSocket message compressed (default 256)").build());
+        options.addOption(Option.builder().longOpt("ws-deflate-client-window-bits").hasArg().argName("bits")
+                .desc("Most window bits clients may compress with, from 8 to 15 (default 15)").build());
+        options.addOption(Option.builder().longOpt("ws-deflate-no-context-takeover")
+                .desc("Compress each WebSocket message on its own, to save memory per connection").build());
+        options.addOption(Option.builder().longOpt("backlog").hasArg().argName("count")
+                .desc("Most connections waiting to be accepted (default 1024)").build());
+        options.addOption(Option.builder("r").longOpt("reactors").hasArg().argName("count")
+                .desc("Number of reactor threads, or epoll event loops, serving connections (default 1)").build());
+        options.addOption(Option.builder("w").longOpt("workers").hasArg().argName("count")
+                .desc("Number of worker threads processing messages (default 1)").build());
+        options.addOption(Option.builder().longOpt("processing").hasArg().argName("mode")
+                .desc("Process messages on the reactor threads (inline) or hand them to the workers (queued, the default)").build());
+        options.addOption(Option.builder().longOpt("idle-strategy").hasArg().argName("strategy")
+                .desc("How the workers wait for bytes to process: busyspin, yielding or backoff (default backoff)").build());
+        options.addOption(Option.builder().longOpt("high-watermark").hasArg().argName("bytes")
+                .desc("Bytes queued for a connection before it is treated as a slow consumer (default 4194304)").build());
+        options.addOption(Option.builder().longOpt("low-watermark").hasArg().argName("bytes")
+                .desc("Bytes queued for a connection below which it is no longer a slow consumer (default 1048576)").build());
+        options.addOption(Option.builder().longOpt("slow-consumer").hasArg().argName("policy")
+                .desc("What to do with a slow consumer: pause, drop or disconnect (default disconnect)").build());
+        options.addOption(Option.builder().longOpt("max-message-size").hasArg().argName("bytes")
+                .desc("Largest message accepted from clients using binary framing (default 1048576)").build());
+        options.addOption(Option.builder().longOpt("login-timeout").hasArg().argName("seconds")
+                .desc("Seconds from connecting a client has to send its credentials, 0 for no limit (default 30)").build());
+        options.addOption(Option.builder().longOpt("customer-idle-timeout").hasArg().argName("seconds")
+                .desc("Seconds a customer may stay silent before being disconnected, 0 for no limit (default 0). "
+                        + "Needed for a customer whose connection was lost unnoticed to log back in with the same username").build());
+        options.addOption(Option.builder().longOpt("agent-idle-timeout").hasArg().argName("seconds")
+                .desc("Seconds an agent may stay silent before being disconnected, 0 for no limit (default 0). "
+                        + "Needed for an agent whose connection was lost unnoticed to log back in with the same username").build());
+        options.addOption(Option.builder().longOpt("debug-buffers")
+                .desc("Track pooled buffers and log any not released on exit").build());
+        options.addOption(Option.builder("h").longOpt("help").desc("Print this message").build());
+        return options;
+    }
+
+    public static ServerConfig parse(CommandLine cmd) throws ParseException {
+        ServerConfig config = new ServerConfig();
+        if ( cmd.hasOption("transport") ) {
+            try {
+                config.transport = TransportType.valueOf(cmd.getOptionValue("transport"));
+            }
+            catch (IllegalArgumentException e) {
+                throw new ParseException(String.format("Invalid transport: %s", cmd.getOptionValue("transport")));
+            }
+        }
+        config.webSocketPort = intValue(cmd, "ws-port", config.webSocketPort, 0);
+        if ( config.webSocketPort > 0 && config.transport != TransportType.nio ) {
+            throw new ParseException("WebSocket connections are only accepted by the nio transport");
+        }
+        config.unixSocket = cmd.getOptionValue("unix-socket");
+        if ( config.unixSocket != null && config.transport != TransportType.nio ) {
+            throw new ParseException("Unix domain sockets are only listened on by the nio transport");
+        }
+        config.webSocketDeflate = cmd.hasOption("ws-deflate");
+        config.deflateThreshold = intValue(cmd, "ws-deflate-threshold", config.deflateThreshold, 0);
+        config.deflateClientWindowBits = intValue(cmd, "ws-deflate-client-window-bits", config.deflateClientWindowBits, 8);
+        if ( config.deflateClientWindowBits > 15 ) {
+            throw new ParseException("The client window bits must be from 8 to 15");
+        }
+        config.deflateNoContextTakeover = cmd.hasOption("ws-deflate-no-context-takeover");
+        config.backlog = intValue(cmd, "backlog", config.backlog, 1);
+        config.reactors = intValue(cmd, "reactors", config.reactors, 1);
+        config.workers = intValue(cmd, "workers", config.workers, 1);
+        config.highWatermark = intValue(cmd, "high-watermark", config.highWatermark, 1);
+        config.lowWatermark = intValue(cmd, "low-watermark", Math.min(config.lowWatermark, config.highWatermark), 0);
+        if ( config.lowWatermark > config.highWatermark ) {
+            throw new ParseException("The low watermark must not be above the high watermark");
+        }
+        if ( cmd.hasOption("processing") ) {
+            try {
+                config.processing = ProcessingMode.valueOf(cmd.getOptionValue("processing"));
+            }
+            catch (IllegalArgumentException e) {
+                throw new ParseException(String.format("Invalid processing mode: %s", cmd.getOptionValue("processing")));
+            }
+        }
+        if ( cmd.hasOption("idle-strategy") ) {
+            try {
+                config.idleStrategy = WorkerIdleStrategy.valueOf(cmd.getOptionValue("idle-strategy"));
+            }
+            catch (IllegalArgumentException e) {
+                throw new ParseException(String.format("Invalid idle strategy: %s", cmd.getOptionValue("idle-strategy")));
+            }
+        }
+        config.maxMessageSize = intValue(cmd, "max-message-size", config.maxMessageSize, 1);
+        if ( cmd.hasOption("slow-consumer") ) {
+            try {
+                config.slowConsumerPolicy = SlowConsumerPolicy.valueOf(cmd.getOptionValue("slow-consumer"));
+            }
+            catch (IllegalArgumentException e) {
+                throw new ParseException(String.format("Invalid slow consumer policy: %s", cmd.getOptionValue("slow-consumer")));
+            }
+        }
+        config.loginTimeout = intValue(cmd, "login-timeout", config.loginTimeout, 0);
+        config.customerIdleTimeout = intValue(cmd, "customer-idle-timeout", config.customerIdleTimeout, 0);
+        config.agentIdleTimeout = intValue(cmd, "agent-idle-timeout", config.agentIdleTimeout, 0);
+        config.debugBuffers = cmd.hasOption("debug-buffers");
+        return config;
+    }
+
+    private static int intValue(CommandLine cmd, String option, int defaultValue, int min) throws ParseException {
+        if ( !cmd.hasOption(option) ) {
+            return defaultValue;
+        }
+        String value = cmd.getOptionValue(option);
+        try {
+            int i = Integer.parseInt(value);
+            if ( i >= min ) {
+                return i;
+            }
+        }
+        catch (NumberFormatException e) {
+        }
+        throw new ParseException(String.format("Invalid value for --%s: %s", option, value));
+    }
+
+}
@@ -2,92 +2,102 @@ package com.kaazing.demo.simplechat;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.kaazing.demo.simplechat.nio.ChangeRequest;
+import com.kaazing.demo.simplechat.transport.BufferPool;
+import com.kaazing.demo.simplechat.transport.Connection;
+import com.kaazing.demo.simplechat.transport.Transport;
 
-public class SimpleChatServer implements Runnable {
-
-    // NIO code thanks to http://rox-xmlrpc.sourceforge.net/niotut/
+/**
+ * The users of the chat and the registries they're found in. The sockets
+ * themselves are handled by a {@link Transport}, which hands their bytes
+ * to the {@link ProtocolFilter}.
+ */
+public class SimpleChatServer {
 
     private static final Logger logger = LogManager.getLogger(SimpleChatServer.class.getName());
 
-    // The host:port combination to listen on
-    private InetAddress hostAddress;
-    private int port;
-
-    // The channel on which we'll accept connections
-    private ServerSocketChannel serverChannel;
-
-    // The selector we'll be monitoring
-    private Selector selector;
-
-    // The buffer into which we'll read data when it's available
-    private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private ServerConfig config;
 
-    private ProtocolFilter worker;
+    // Users by the connection they came on, rather than its remote
+    // address, which every connection over a Unix domain socket shares
+    private Map<Connection, User> users;
 
-    // A list of PendingChange instances
-    private List<ChangeRequest> pendingChanges = new LinkedList<ChangeRequest>();
-
-    // Maps a SocketChannel to a list of ByteBuffer instances
-    private Map<SocketChannel, List<ByteBuffer>> pendingData = new HashMap<SocketChannel, List<ByteBuffer>>();
-
-    private Map<SocketAddress, User> users;
+    // Users who sent their credentials, by username
+    private Map<String, User> usernames;
 
     private Set<User> agents;
 
     private Set<User> customers;
 
-    public SimpleChatServer(InetAddress hostAddress, int port, ProtocolFilter worker) throws IOException {
-        this.hostAddress = hostAddress;
-        this.port = port;
-        this.selector = this.initSelector();
-        this.worker = worker;
-        users = new HashMap<>();
-        agents = new HashSet<User>();
-        customers = new HashSet<User>();
+    // Held while a user joins or leaves the agents or customers, together
+    // with telling the others, so that with several threads processing
+    // users the first agent to arrive and the last to leave are still
+    // decided one at a time, and told in the order they happened
+    private final Object presenceLock = new Object();
+
+    public SimpleChatServer(ServerConfig config) {
+        this.config = config;
+        // Users are shared between the transport and worker threads
+        users = new ConcurrentHashMap<>();
+        usernames = new ConcurrentHashMap<>();
+        agents = ConcurrentHashMap.newKeySet();
+        customers = ConcurrentHashMap.newKeySet();
     }
 
     public User getUser(String username) {
-        //@formatter:off
-        Optional<User> user = users.entrySet().stream()
-    			.filter(map -> username.equals(map.getValue().getUsername()))
-    			.map(Map.Entry::getValue)
-                .findFirst();
-        //@formatter:on
-
-        if ( user.isPresent() ) {
-            return user.get();
-        }
-        else {
+        if ( username == null ) {
             return null;
         }
+        return usernames.get(username);
+    }
+
+    /**
+     * Index a user by username.
+     * 
+     * @return false if another user already has the username
+     */
+    public boolean addUsername(String username, User user) {
+        return usernames.putIfAbsent(username, user) == null;
+    }
+
+    public void removeUsername(User user) {
+        if ( user.getUsername() != null ) {
+            usernames.remove(user.getUsername(), user);
+        }
+    }
+
+    public Map<String, User> getUsernames() {
+        return usernames;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
     }
 
-    public Map<SocketAddress, User> getUsers() {
+    public Map<Connection, User> getUsers() {
         return users;
     }
 
+    /**
+     * The lock to hold while changing the agents or customers and telling
+     * the others. Telling them only queues frames, so it is never held for
+     * long.
+     */
+    public Object getPresenceLock() {
+        return presenceLock;
+    }
+
     public void addAgent(User agent) {
         agents.add(agent);
     }
@@ -104,195 +114,33 @@ public class SimpleChatServer implements Runnable {
         return customers;
     }
     
-    public void send(SocketChannel socket, byte[] data) {
-        synchronized (this.pendingChanges) {
-            // Indicate we want the interest ops set changed
-            this.pendingChanges.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
-
-            // And queue the data we want written
-            synchronized (this.pendingData) {
-                List<ByteBuffer> queue = (List<ByteBuffer>) this.pendingData.get(socket);
-                if ( queue == null ) {
-                    queue = new ArrayList<ByteBuffer>();
-                    this.pendingData.put(socket, queue);
-                }
-                queue.add(ByteBuffer.wrap(data));
-            }
-        }
-
-        // Finally, wake up our selecting thread so it can make the required changes
-        this.selector.wakeup();
-    }
-
-    public void run() {
-        while (true) {
-            try {
-                // Process any pending changes
-                synchronized (this.pendingChanges) {
-                    Iterator<ChangeRequest> changes = this.pendingChanges.iterator();
-                    while (changes.hasNext()) {
-                        ChangeRequest change = (ChangeRequest) changes.next();
-                        switch (change.type) {
-                        case ChangeRequest.CHANGEOPS:
-                            SelectionKey key = change.socket.keyFor(this.selector);
-                            key.interestOps(change.ops);
-                        }
-                    }
-                    this.pendingChanges.clear();
-                }
-
-                // Wait for an event one of the registered channels
-                this.selector.select();
-
-                // Iterate over the set of keys for which events are available
-                Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
-                while (selectedKeys.hasNext()) {
-                    SelectionKey key = (SelectionKey) selectedKeys.next();
-                    selectedKeys.remove();
-
-                    if ( !key.isValid() ) {
-                        continue;
-                    }
-
-                    // Check what event is available and deal with it
-                    if ( key.isAcceptable() ) {
-                        this.accept(key);
-                    }
-                    else if ( key.isReadable() ) {
-                        this.read(key);
-                    }
-                    else if ( key.isWritable() ) {
-                        this.write(key);
-                    }
-                }
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    private void accept(SelectionKey key) throws IOException {
-        // For an accept to be pending the channel must be a server socket channel.
-        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-
-        // Accept the connection and make it non-blocking
-        SocketChannel socketChannel = serverSocketChannel.accept();
-        socketChannel.configureBlocking(false);
-
-        // Register the new SocketChannel with our Selector, indicating
-        // we'd like to be notified when there's data waiting to be read
-        socketChannel.register(this.selector, SelectionKey.OP_READ);
-        logger.info(String.format("[%s] New connection", socketChannel.getRemoteAddress()));
-    }
-
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-
-        // Clear out our read buffer so it's ready for new data
-        this.readBuffer.clear();
-
-        // Attempt to read off the channel
-        int numRead;
+    public static void main(String[] args) {
+        Options options = ServerConfig.options();
+        CommandLine cmd;
+        ServerConfig config;
         try {
-            numRead = socketChannel.read(this.readBuffer);
+            cmd = new DefaultParser().parse(options, args);
+            config = ServerConfig.parse(cmd);
         }
-        catch (IOException e) {
-            // The remote forcibly closed the connection, cancel
-            // the selection key and close the channel.
-            User user = users.get(socketChannel.getRemoteAddress());
-            String loggerId;
-            if ( user != null ) {
-                loggerId = user.getLoggerId();
-            }
-            else {
-                loggerId = String.format("[%s]", socketChannel.getRemoteAddress().toString());
-            }
-            logger.info(String.format("%s Remote end closed the connection", loggerId));
-            if ( user != null ) {
-                user.handleConnectionClose();
-            }
-            key.cancel();
-            socketChannel.close();
+        catch (ParseException e) {
+            logger.error(e.getMessage());
+            new HelpFormatter().printHelp("java -jar protocol-server.jar [options] [host [port]]", options);
             return;
         }
-
-        if ( numRead == -1 ) {
-            // Remote entity shut the socket down cleanly. Do the
-            // same from our end and cancel the channel.
-            User user = users.get(socketChannel.getRemoteAddress());
-            String loggerId;
-            if ( user != null ) {
-                loggerId = user.getLoggerId();
-            }
-            else {
-                loggerId = String.format("[%s]", socketChannel.getRemoteAddress().toString());
-            }
-            logger.info(String.format("%s Remote end closed the connection", loggerId));
-            if ( user != null ) {
-                user.handleConnectionClose();
-            }
-            key.channel().close();
-            key.cancel();
+        if ( cmd.hasOption("help") ) {
+            new HelpFormatter().printHelp("java -jar protocol-server.jar [options] [host [port]]", options);
             return;
         }
 
-        // Hand the data off to our worker thread
-        this.worker.processData(this, socketChannel, this.readBuffer.array(), numRead);
-    }
-
-    private void write(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-
-        synchronized (this.pendingData) {
-            List<?> queue = (List<?>) this.pendingData.get(socketChannel);
-
-            // Write until there's not more data ...
-            while (!queue.isEmpty()) {
-                ByteBuffer buf = (ByteBuffer) queue.get(0);
-                socketChannel.write(buf);
-                if ( buf.remaining() > 0 ) {
-                    // ... or the socket's buffer fills up
-                    break;
-                }
-                queue.remove(0);
-            }
-
-            if ( queue.isEmpty() ) {
-                // We wrote away all data, so we're no longer interested
-                // in writing on this socket. Switch back to waiting for
-                // data.
-                key.interestOps(SelectionKey.OP_READ);
-            }
+        if ( config.debugBuffers ) {
+            BufferPool.get().enableLeakDetection();
         }
-    }
-
-    private Selector initSelector() throws IOException {
-        // Create a new selector
-        Selector socketSelector = SelectorProvider.provider().openSelector();
-
-        // Create a new non-blocking server socket channel
-        this.serverChannel = ServerSocketChannel.open();
-        serverChannel.configureBlocking(false);
-
-        logger.info(String.format("Server started on %s:%d", this.hostAddress, this.port));
-        // Bind the server socket to the specified address and port
-        InetSocketAddress isa = new InetSocketAddress(this.hostAddress, this.port);
-        serverChannel.socket().bind(isa);
 
-        // Register the server socket channel, indicating an interest in
-        // accepting new connections
-        serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
-
-        return socketSelector;
-    }
-
-    public static void main(String[] args) {
         try {
-            ProtocolFilter worker = new ProtocolFilter();
+            ProtocolFilter worker = new ProtocolFilter(config);
             InetAddress host;
             int port = 4445;
-            new Thread(worker).start();
+            args = cmd.getArgs();
             if (args.length == 2) {
                 host = InetAddress.getByName(args[0]);
                 port = Integer.parseInt(args[1]);
@@ -308,11 +156,13 @@ public class SimpleChatServer implements Runnable {
             // logger.info("Usage: java -jar uber-protocol-server-VERSION.jar 127.0.0.1 4445");
             // System.exit(0);
             // }
-            new Thread(new SimpleChatServer(host, port, worker)).start();
+            SimpleChatServer server = new SimpleChatServer(config);
+            worker.start(server);
+            config.transport.create(config).start(host, port, worker);
         }
         catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-}
\ No newline at end of file
+}
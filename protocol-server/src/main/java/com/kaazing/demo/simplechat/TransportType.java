@@ -0,0 +1,48 @@
+package com.kaazing.demo.simplechat;
+
+import com.kaazing.demo.simplechat.blocking.BlockingTransport;
+import com.kaazing.demo.simplechat.netty.NettyEpollTransport;
+import com.kaazing.demo.simplechat.nio.NioTransport;
+import com.kaazing.demo.simplechat.transport.Transport;
+
+/**
+ * The {@link Transport} the server accepts connections with.
+ */
+public enum TransportType {
+
+    /**
+     * java.nio selectors, with an acceptor thread handing connections to
+     * the reactors.
+     */
+    nio {
+        @Override
+        public Transport create(ServerConfig config) {
+            return new NioTransport(config);
+        }
+    },
+
+    /**
+     * Netty's native epoll transport, Linux only. Every event loop accepts
+     * connections of its own on a socket bound with SO_REUSEPORT.
+     */
+    epoll {
+        @Override
+        public Transport create(ServerConfig config) {
+            return new NettyEpollTransport(config);
+        }
+    },
+
+    /**
+     * Blocking reads and writes, with a reader and a writer thread for every
+     * connection. They are virtual threads on Java 21 and later.
+     */
+    blocking {
+        @Override
+        public Transport create(ServerConfig config) {
+            return new BlockingTransport(config);
+        }
+    };
+
+    public abstract Transport create(ServerConfig config);
+
+}
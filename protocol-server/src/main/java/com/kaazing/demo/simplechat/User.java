@@ -1,15 +1,18 @@
 package com.kaazing.demo.simplechat;
 
-import java.io.IOException;
 import java.net.SocketAddress;
-import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.apache.logging.log4j.util.Unbox;
+
+import com.kaazing.demo.simplechat.transport.Connection;
+import com.kaazing.demo.simplechat.transport.Frame;
 
 public class User {
 
@@ -20,23 +23,41 @@ public class User {
      */
     public static final int LENGTH_PREFIX_LENGTH = 4;
 
+    /**
+     * The time between the pieces of the test messages.
+     */
+    private static final long TEST_MESSAGE_GAP_MILLIS = 10;
+
     public enum Role {
         customer, agent
     }
 
     private SimpleChatServer server;
 
-    private SocketChannel socket;
+    private Connection connection;
+
     private SocketAddress remoteAddress;
 
     /**
-     * Store the bytes from the length prefix until we've received them all.
+     * Splits the bytes received from this user into messages.
      */
-    private StringBuffer currentLenthPrefix = new StringBuffer(LENGTH_PREFIX_LENGTH);
+    private FrameDecoder decoder;
 
-    private Message currentMessage;
+    /**
+     * The framing of the messages sent to this user. Read by every thread
+     * sending to this user, but only changed before anyone else knows of
+     * the user.
+     */
+    private volatile Framing framing = Framing.ascii;
+
+    /**
+     * Reads the fields of each message received from this user.
+     */
+    private InboundMessage inbound = new InboundMessage();
 
     private String username;
+
+    // Set once credentials are accepted
     private Role role;
 
     /**
@@ -46,15 +67,11 @@ public class User {
      */
     private String loggerId;
 
-    public User(SimpleChatServer server, SocketChannel socket) {
+    public User(SimpleChatServer server, Connection connection) {
         this.server = server;
-        this.socket = socket;
-        try {
-            this.remoteAddress = socket.getRemoteAddress();
-        }
-        catch (IOException e) {
-            LOGGER.error(e);
-        }
+        this.connection = connection;
+        this.decoder = new FrameDecoder(this::processMessage, server.getConfig().maxMessageSize);
+        this.remoteAddress = connection.getRemoteAddress();
         loggerId = String.format("[%s]", remoteAddress);
     }
 
@@ -109,164 +126,177 @@ public class User {
      * 
      * @param bytes
      */
-    public void processNewBytes(byte[] bytes) {
-        // If currentMessage is null, then we are starting a new message.
-        // Otherwise we are continuing an existing
-        // message.
-        if ( currentMessage == null ) {
-            // This is a new message
-            LOGGER.trace(String.format("%s Begin processing new message.", loggerId));
-            // Determine the length. But make sure we've received all of the
-            // length prefix, though.
-            int remainingLengthPrefixNeeded = LENGTH_PREFIX_LENGTH - currentLenthPrefix.length();
-            int lengthPrefixToGet = Math.min(remainingLengthPrefixNeeded, bytes.length);
-            byte[] lenBytes = Arrays.copyOfRange(bytes, 0, lengthPrefixToGet);
-            currentLenthPrefix.append(new String(lenBytes, StandardCharsets.UTF_8));
-
-            LOGGER.trace(String.format("%s Length string: %s", loggerId, currentLenthPrefix));
-            if ( currentLenthPrefix.length() < LENGTH_PREFIX_LENGTH ) {
-                // Not enough of the prefix length yet. Wait for more bytes.
-                return;
-            }
-
-            byte[] remainingBytes = Arrays.copyOfRange(bytes, lengthPrefixToGet, bytes.length);
-            if ( remainingBytes.length == 0 ) {
-                return;
-            }
-
-            int len = Integer.valueOf(currentLenthPrefix.toString());
-            currentLenthPrefix = new StringBuffer(LENGTH_PREFIX_LENGTH);
-            LOGGER.trace(String.format("%s Message size: %d bytes", loggerId, len));
-
-            // See if we've received all the bytes, otherwise store them until
-            // more bytes arrive.
-            if ( remainingBytes.length >= len ) {
-                byte[] messageBytes = Arrays.copyOfRange(remainingBytes, 0, len);
-                LOGGER.debug(String.format("%s Got all the bytes: [%s]", loggerId, Util.bytesToString(messageBytes)));
-                processMessage(new Message(len, messageBytes));
-
-                // Check if the next message is in this set of bytes.
-                if ( remainingBytes.length > len ) {
-                    byte[] nextMessageBytes = Arrays.copyOfRange(remainingBytes, len, remainingBytes.length);
-                    processNewBytes(nextMessageBytes);
-                }
-            }
-            else {
-                byte[] messageBytes = Arrays.copyOfRange(remainingBytes, 0, remainingBytes.length);
-                LOGGER.debug(String.format("%s Got some of the bytes: [%s]", loggerId, Util.bytesToString(messageBytes)));
-                currentMessage = new Message(len, messageBytes);
-            }
+    public void processNewBytes(ByteBuffer bytes) {
+        try {
+            decoder.decode(bytes);
         }
-        else {
-            // This is the continuation of an existing message
-            int remainingLen = currentMessage.getMessageSize() - currentMessage.getLength();
-            LOGGER.info(
-                    String.format("%s Continuing an existing message. Number of bytes still needed: %d", loggerId, remainingLen));
-
-            // See if we've received all the bytes, otherwise store them until
-            // more bytes arrive.
-            if ( bytes.length >= remainingLen ) {
-                byte[] messageBytes = Arrays.copyOfRange(bytes, 0, remainingLen);
-                LOGGER.debug(String.format("%s Got all the bytes: [%s]", loggerId, Util.bytesToString(messageBytes)));
-                currentMessage.addBytes(messageBytes);
-                processMessage(currentMessage);
-                currentMessage = null;
-
-                // Check if the next message is in this set of bytes.
-                if ( bytes.length > remainingLen ) {
-                    byte[] nextMessageBytes = Arrays.copyOfRange(bytes, remainingLen, bytes.length);
-                    processNewBytes(nextMessageBytes);
-                }
-            }
-            else {
-                byte[] messageBytes = Arrays.copyOfRange(bytes, 0, bytes.length);
-                LOGGER.debug(String.format("%s Got some of the bytes: [%s]", loggerId, Util.bytesToString(messageBytes)));
-                currentMessage.addBytes(messageBytes);
-            }
+        catch (IllegalArgumentException e) {
+            // The stream is out of step, so nothing more can be read from it
+            LOGGER.error("{} Closing the connection: {}", loggerId, e.getMessage());
+            connection.close();
         }
     }
 
     /**
      * Process a fully assembled message.
      */
-    private void processMessage(Message message) {
-        LOGGER.info(String.format("%s Processing full message: %s", loggerId, message.toString()));
-
-        JSONObject json = new JSONObject(Util.bytesToString(message.getAllBytes()));
+    private void processMessage(ByteBuffer message) {
+        if ( LOGGER.isDebugEnabled() ) {
+            LOGGER.debug("{} Processing full message: [{}] ({} bytes)", loggerId, Util.bytesToString(message),
+                    Unbox.box(message.remaining()));
+        }
 
-        String messageType = null;
         try {
-            messageType = json.getString("type");
+            inbound.read(message);
         }
-        catch (JSONException e) {
-            LOGGER.error("No messageType", e);
+        catch (IllegalArgumentException e) {
+            LOGGER.error("{} Malformed message: {}", loggerId, e.getMessage());
             return;
         }
 
-        LOGGER.info(String.format("%s Message type: %s", loggerId, messageType));
-
-        switch (messageType) {
-        case "credentials":
-            processCredentialsMessage(json);
-            break;
-        case "message":
-            processChatMessage(json);
-            break;
-        default:
-            LOGGER.error(String.format("Unknown messageType: [%s]", messageType));
+        if ( inbound.getType() == null ) {
+            LOGGER.error("{} No messageType", loggerId);
+            return;
         }
 
-    }
+        LOGGER.debug("{} Message type: {}", loggerId, inbound.getType());
 
-    private void processCredentialsMessage(JSONObject message) {
+        // A message that can't be processed mustn't take the messages
+        // after it in the same read down with it
         try {
-            setUsername(message.getString("username"));
+            switch (inbound.getType()) {
+            case credentials:
+                processCredentialsMessage(inbound);
+                break;
+            case message:
+                processChatMessage(inbound);
+                break;
+            default:
+                LOGGER.error("Unknown messageType: [{}]", inbound.getUnknownType());
+            }
         }
-        catch (JSONException e) {
-            LOGGER.error(String.format("%s No username", loggerId), e);
+        catch (RuntimeException e) {
+            LOGGER.error("{} Failed to process {} message", loggerId, inbound.getType(), e);
         }
 
-        try {
-            String roleStr = message.getString("role");
-            role = Role.valueOf(roleStr.toLowerCase());
-        }
-        catch (JSONException e) {
-            LOGGER.error(String.format("%s No role", loggerId), e);
+    }
+
+    private void processCredentialsMessage(InboundMessage message) {
+        Role newRole = roleOf(message.getRole());
+        if ( newRole == null ) {
+            // Rejected before the username is taken, so a user is never
+            // registered without a role
+            LOGGER.error("{} Invalid role: {}", loggerId, message.getRole());
+            return;
         }
 
-        LOGGER.info(String.format("%s %s", loggerId, this));
+        if ( message.getFraming() != null ) {
+            negotiateFraming(message.getFraming());
+        }
 
-        // TODO: Reject user if the username already exists
+        if ( message.getUsername() != null ) {
+            if ( username != null ) {
+                server.removeUsername(this);
+            }
+            if ( !server.addUsername(message.getUsername(), this) ) {
+                // Reject the user, the username already exists. It may be
+                // held by a connection that has gone without the server
+                // noticing, which only an idle timeout closes.
+                LOGGER.error("{} Username {} is already in use. Closing the connection", loggerId,
+                        message.getUsername());
+                sendError(String.format("Username %s is already in use", message.getUsername()));
+                connection.closeWhenWritten();
+                return;
+            }
+            setUsername(message.getUsername());
+        }
+        else {
+            LOGGER.error("{} No username", loggerId);
+        }
 
-        switch (role) {
-        case customer:
-            LOGGER.debug(String.format("%s Adding user to customer list", loggerId));
-            server.addCustomer(this);
-
-            // If tell the customer that there are no agents.
-            // otherwise there are agents, tell them that a new customer has
-            // arrived.
-            if ( server.getAgents().size() > 0 ) {
-                sendAgentsPresentMessage();
-                for (User agent : server.getAgents()) {
-                    agent.sendUserConnectedMessage(this);
+        role = newRole;
+        connection.loggedIn();
+        connection.setIdleTimeout(getIdleTimeout(role), TimeUnit.SECONDS);
+
+        LOGGER.info("{} {}", loggerId, this);
+
+        synchronized (server.getPresenceLock()) {
+            switch (role) {
+            case customer:
+                LOGGER.trace("{} Adding user to customer list", loggerId);
+                server.addCustomer(this);
+
+                // If tell the customer that there are no agents.
+                // otherwise there are agents, tell them that a new customer has
+                // arrived.
+                if ( server.getAgents().size() > 0 ) {
+                    sendAgentsPresentMessage();
+                    for (User agent : server.getAgents()) {
+                        agent.sendUserConnectedMessage(this);
+                    }
                 }
-            }
-            break;
-        case agent:
-            LOGGER.debug(String.format("%s Adding user to agent list", loggerId));
-            server.addAgent(this);
-            // Tell the new agent about all of the customers known so far.
-            boolean firstAgent = (server.getAgents().size() == 1);
-            for (User customer : server.getCustomers()) {
-                sendUserConnectedMessage(customer);
-                if ( firstAgent ) {
-                    customer.sendAgentsPresentMessage();
+                break;
+            case agent:
+                LOGGER.trace("{} Adding user to agent list", loggerId);
+                boolean firstAgent = server.getAgents().isEmpty();
+                server.addAgent(this);
+                // Tell the new agent about all of the customers known so far.
+                for (User customer : server.getCustomers()) {
+                    sendUserConnectedMessage(customer);
+                    if ( firstAgent ) {
+                        customer.sendAgentsPresentMessage();
+                    }
                 }
+
             }
+        }
+
+    }
+
+    /**
+     * The role with the given name, or null if there is no such role.
+     */
+    private static Role roleOf(String name) {
+        if ( name == null ) {
+            return null;
+        }
+        try {
+            return Role.valueOf(name.toLowerCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 
+    /**
+     * Switch to the framing the client asks for, for the messages after its
+     * credentials in both directions. This is only allowed in the first
+     * credentials message, before anyone else can send to this user. It is
+     * acknowledged with a framing message, which is the last one sent with
+     * the old framing.
+     */
+    private void negotiateFraming(String requested) {
+        Framing newFraming;
+        try {
+            newFraming = Framing.valueOf(requested);
+        }
+        catch (IllegalArgumentException e) {
+            LOGGER.error("{} Unknown framing: {}", loggerId, requested);
+            return;
+        }
+        // Credentials without a username are accepted too, and put the user
+        // where others send to it
+        if ( role != null ) {
+            LOGGER.error("{} Framing can only be chosen with the first credentials", loggerId);
+            return;
         }
 
+        LOGGER.info("{} Switching to {} framing", loggerId, newFraming);
+        Frame frame = FrameEncoder.get().begin("framing").field("framing", newFraming.name()).end(framing);
+        connection.send(frame, true, null);
+        frame.release();
+        framing = newFraming;
+        decoder.setFraming(newFraming);
     }
 
     public String getUsername() {
@@ -274,123 +304,190 @@ public class User {
     }
 
     public void sendUserConnectedMessage(User newUser) {
-        LOGGER.info(String.format("%s Notifying %s (%s) that %" + "s (%s) is present", loggerId, username, role, newUser.username,
-                newUser.role));
-        String str = String.format("{\"type\":\"connected\",\"username\":\"%s\",\"role\":\"%s\"}", newUser.getUsername(),
+        LOGGER.info("{} Notifying {} ({}) that {} ({}) is present", loggerId, username, role, newUser.username,
                 newUser.role);
-        String strLen = Util.padLeftZeros(String.valueOf(str.length()), LENGTH_PREFIX_LENGTH);
-        LOGGER.debug(String.format("%s str=%s len=%s", loggerId, str, strLen));
+        Frame frame = FrameEncoder.get().begin("connected").field("username", newUser.getUsername())
+                .field("role", newUser.role.name()).end(framing);
+        if ( LOGGER.isTraceEnabled() ) {
+            LOGGER.trace("{} frame={}", loggerId, Util.bytesToString(frame.getBuffer()));
+        }
 
-        byte[] bytes = (strLen + str).getBytes(StandardCharsets.UTF_8);
-        server.send(socket, bytes);
+        sendPresence(frame);
     }
 
     public void sendUserDisconnectedMessage(User user) {
-        LOGGER.info(String.format("%s Notifying %s (%s) that %" + "s (%s) disconnected", loggerId, username, role, user.username,
-                user.role));
-        String str = String.format("{\"type\":\"disconnected\",\"username\":\"%s\"}", user.getUsername());
-        String strLen = Util.padLeftZeros(String.valueOf(str.length()), LENGTH_PREFIX_LENGTH);
-        LOGGER.debug(String.format("%s str=%s len=%s", loggerId, str, strLen));
-
-        byte[] bytes = (strLen + str).getBytes(StandardCharsets.UTF_8);
-        server.send(socket, bytes);
+        LOGGER.info("{} Notifying {} ({}) that {} ({}) disconnected", loggerId, username, role, user.username,
+                user.role);
+        Frame frame = FrameEncoder.get().begin("disconnected").field("username", user.getUsername()).end(framing);
+        if ( LOGGER.isTraceEnabled() ) {
+            LOGGER.trace("{} frame={}", loggerId, Util.bytesToString(frame.getBuffer()));
+        }
+
+        sendPresence(frame);
     }
 
     public void sendNoAgentsPresentMessage() {
-        LOGGER.info(String.format("%s Notifying %s that there are no agents present", loggerId, username));
-        String str = "{\"type\":\"NoAgentsPresent\"}";
-        String strLen = Util.padLeftZeros(String.valueOf(str.length()), LENGTH_PREFIX_LENGTH);
-        LOGGER.debug(String.format("%s str=%s len=%s", loggerId, str, strLen));
+        LOGGER.info("{} Notifying {} that there are no agents present", loggerId, username);
+        Frame frame = FrameEncoder.get().begin("NoAgentsPresent").end(framing);
+        if ( LOGGER.isTraceEnabled() ) {
+            LOGGER.trace("{} frame={}", loggerId, Util.bytesToString(frame.getBuffer()));
+        }
 
-        byte[] bytes = (strLen + str).getBytes(StandardCharsets.UTF_8);
-        server.send(socket, bytes);
+        sendPresence(frame);
     }
 
     public void sendAgentsPresentMessage() {
-        LOGGER.info(String.format("%s Notifying %s that there are agents are present", loggerId, username));
-        String str = "{\"type\":\"AgentsPresent\"}";
-        String strLen = Util.padLeftZeros(String.valueOf(str.length()), LENGTH_PREFIX_LENGTH);
-        LOGGER.debug(String.format("%s str=%s len=%s", loggerId, str, strLen));
+        LOGGER.info("{} Notifying {} that there are agents are present", loggerId, username);
+        Frame frame = FrameEncoder.get().begin("AgentsPresent").end(framing);
+        if ( LOGGER.isTraceEnabled() ) {
+            LOGGER.trace("{} frame={}", loggerId, Util.bytesToString(frame.getBuffer()));
+        }
 
-        byte[] bytes = (strLen + str).getBytes(StandardCharsets.UTF_8);
-        server.send(socket, bytes);
+        sendPresence(frame);
     }
 
-    public void sendCustomerChatMessage(User sender, String messageText) {
-        String str = String.format("{\"type\":\"customerMessage\",\"sender\":\"%s\",\"messageText\":\"%s\"}", sender.getUsername(),
-                messageText);
-        String strLen = Util.padLeftZeros(String.valueOf(str.length()), LENGTH_PREFIX_LENGTH);
-        LOGGER.info(String.format("%s Sending message to %s", loggerId, username));
-        LOGGER.info(String.format("%s message=%s len=%s", loggerId, str, strLen));
-
-        byte[] bytes = (strLen + str).getBytes(StandardCharsets.UTF_8);
-        server.send(socket, bytes);
+    /**
+     * Tell the user why it is about to be disconnected.
+     */
+    private void sendError(String reason) {
+        Frame frame = FrameEncoder.get().begin("error").field("reason", reason).end(framing);
+        connection.send(frame, true, null);
+        frame.release();
     }
 
-    public void sendAgentChatMessage(User sender, User recipient, String messageText) {
-        String str = String.format("{\"type\":\"agentMessage\",\"sender\":\"%s\",\"to\":\"%s\",\"messageText\":\"%s\"}",
-                sender.getUsername(), recipient.username, messageText);
-        String strLen = Util.padLeftZeros(String.valueOf(str.length()), LENGTH_PREFIX_LENGTH);
-        LOGGER.info(String.format("%s Sending message to %s", loggerId, username));
-        LOGGER.info(String.format("%s message=%s len=%s", loggerId, str, strLen));
+    /**
+     * Encode a customer's message once, so it can be sent to every agent
+     * with {@link #sendShared(SharedMessage, User)}.
+     */
+    private static SharedMessage encodeCustomerChatMessage(User sender, String messageText) {
+        return new SharedMessage(FrameEncoder.get().begin("customerMessage").field("sender", sender.getUsername())
+                .field("messageText", messageText));
+    }
 
-        byte[] bytes = (strLen + str).getBytes(StandardCharsets.UTF_8);
-        server.send(socket, bytes);
+    /**
+     * Encode an agent's message once, so it can be sent to the customer and
+     * every other agent with {@link #sendShared(SharedMessage, User)}.
+     */
+    private static SharedMessage encodeAgentChatMessage(User sender, User recipient, String messageText) {
+        return new SharedMessage(FrameEncoder.get().begin("agentMessage").field("sender", sender.getUsername())
+                .field("to", recipient.username).field("messageText", messageText));
     }
 
-    private void processChatMessage(JSONObject message) {
-        String messageText = null;
+    /**
+     * Send a message that is shared with other recipients. Each recipient
+     * gets its own view of the frame for its framing, so writing to one
+     * doesn't disturb the others. If this user is too slow, the sender may
+     * be paused.
+     */
+    private void sendShared(SharedMessage message, User sender) {
+        LOGGER.debug("{} Sending message to {}", loggerId, username);
+        Frame frame;
         try {
-            messageText = message.getString("messageText");
-            // JSON encode the string in case the message contained characters
-            // that need escaping, like double quotes or backslashes.
-            messageText = JSONObject.quote(messageText);
-            // The encoding adds surrounding quotes which we don't need. So remove them.
-            messageText = messageText.substring(1, messageText.length()-1);
-            LOGGER.info(String.format("%s messageText=%s", loggerId, messageText));
+            frame = message.getFrame(framing);
+        }
+        catch (IllegalArgumentException e) {
+            LOGGER.error("{} Not sending message to {}: {}", loggerId, username, e.getMessage());
+            return;
+        }
+        connection.send(frame, true, sender.connection);
+    }
+
+    private void send(ByteBuffer frame) {
+        connection.send(frame);
+    }
+
+    /**
+     * Presence updates may be dropped if this user is too slow. The frame
+     * is released once sent.
+     */
+    private void sendPresence(Frame frame) {
+        if ( !connection.send(frame, false, null) ) {
+            LOGGER.debug("{} Dropped presence update, {} bytes queued", loggerId, Unbox.box(connection.getQueuedBytes()));
+        }
+        frame.release();
+    }
+
+    /**
+     * The number of bytes waiting to be written to this user.
+     */
+    public long getOutboundQueueBytes() {
+        return connection.getQueuedBytes();
+    }
+
+    /**
+     * The number of frames waiting to be written to this user.
+     */
+    public int getOutboundQueueFrames() {
+        return connection.getQueuedFrames();
+    }
+
+    private void processChatMessage(InboundMessage message) {
+        String messageText = message.getMessageText();
+        if ( messageText == null ) {
+            LOGGER.error("{} No messageText", loggerId);
+            return;
         }
-        catch (JSONException e) {
-            LOGGER.error(String.format("%s No messageText", loggerId), e);
+        LOGGER.debug("{} messageText={}", loggerId, messageText);
+
+        if ( role == null ) {
+            LOGGER.error("{} Chat message before credentials", loggerId);
+            return;
         }
 
         switch (role) {
         case customer:
             // Send the message to agents
-            for (User agent : server.getAgents()) {
-                LOGGER.debug(String.format("%s Sending message to %s", loggerId, agent));
-                agent.sendCustomerChatMessage(this, messageText);
+            SharedMessage customerMessage = encodeCustomerChatMessage(this, messageText);
+            if ( LOGGER.isDebugEnabled() ) {
+                LOGGER.debug("{} message={}", loggerId, customerMessage);
+            }
+            try {
+                for (User agent : server.getAgents()) {
+                    LOGGER.trace("{} Sending message to {}", loggerId, agent);
+                    agent.sendShared(customerMessage, this);
+                }
+            }
+            finally {
+                customerMessage.release();
             }
             break;
         case agent:
             // Send the message to the customer
-            String to = null;
-            try {
-                to = message.getString("to");
-                LOGGER.info(String.format("%s to=%s", loggerId, to));
-            }
-            catch (JSONException e) {
-                LOGGER.error(String.format("%s No to", loggerId), e);
+            String to = message.getTo();
+            if ( to == null ) {
+                LOGGER.error("{} No to", loggerId);
+                return;
             }
+            LOGGER.debug("{} to={}", loggerId, to);
 
             User toUser = server.getUser(to);
             if ( toUser == null ) {
-                LOGGER.error(String.format("Could not find user %s", loggerId, to));
+                LOGGER.error("{} Could not find user {}", loggerId, to);
                 return;
             }
-            toUser.sendAgentChatMessage(this, toUser, messageText);
-            // Also let other agents see the conversation.
-            for (User agent : server.getAgents()) {
-                if ( this == agent ) {
-                    // Don't send to ourselves.
-                    continue;
+            SharedMessage agentMessage = encodeAgentChatMessage(this, toUser, messageText);
+            if ( LOGGER.isDebugEnabled() ) {
+                LOGGER.debug("{} message={}", loggerId, agentMessage);
+            }
+            try {
+                toUser.sendShared(agentMessage, this);
+                // Also let other agents see the conversation.
+                for (User agent : server.getAgents()) {
+                    if ( this == agent ) {
+                        // Don't send to ourselves.
+                        continue;
+                    }
+                    agent.sendShared(agentMessage, this);
                 }
-                agent.sendAgentChatMessage(this, toUser, messageText);
+            }
+            finally {
+                agentMessage.release();
             }
             break;
         }
 
         // For testing
-        if ( messageText.compareToIgnoreCase("hitme") == 0 ) {
+        if ( messageText.compareToIgnoreCase("hitme") == 0 && framing == Framing.ascii ) {
             sendTestMessages();
         }
     }
@@ -409,56 +506,117 @@ public class User {
         byte[] m3 = Arrays.copyOfRange(testMessage1, 25, 39);
         byte[] m4 = Arrays.copyOfRange(testMessage1, 39, testMessage1.length);
 
-        LOGGER.info(String.format("%s Sending test message1: %s%s", loggerId, testMessage1Len, testMessage1Str));
+        LOGGER.info("{} Sending test message1: {}{}", loggerId, testMessage1Len, testMessage1Str);
 
-        try {
-            // Force data to be sent separately to ensure multiple WebSocket
-            // frames
-            server.send(socket, m1);
-            Thread.sleep(10);
-            server.send(socket, m2);
-            Thread.sleep(10);
-            server.send(socket, m3);
-            Thread.sleep(10);
-            server.send(socket, m4);
-            Thread.sleep(10);
-        }
-        catch (InterruptedException e) {
-            LOGGER.error(String.format("%s I can't sleep", loggerId), e);
-        }
+        // Force data to be sent separately to ensure multiple WebSocket
+        // frames. The pieces go out 10ms apart from the reactor's timer
+        // wheel, so the worker carries on with other users meanwhile.
+        send(ByteBuffer.wrap(m1));
+        connection.schedule(() -> send(ByteBuffer.wrap(m2)), TEST_MESSAGE_GAP_MILLIS, TimeUnit.MILLISECONDS);
+        connection.schedule(() -> send(ByteBuffer.wrap(m3)), 2 * TEST_MESSAGE_GAP_MILLIS, TimeUnit.MILLISECONDS);
+        connection.schedule(() -> send(ByteBuffer.wrap(m4)), 3 * TEST_MESSAGE_GAP_MILLIS, TimeUnit.MILLISECONDS);
 
         // Send two messages that will be in the same WebSocket frame.
         String testMessage3Str = "{\"type\":\"agentMessage\", \"message\":\"Hello, world!\"}";
         String testMessage3Len = Util.padLeftZeros(String.valueOf(testMessage3Str.length()), LENGTH_PREFIX_LENGTH);
         String testMessage4Str = "{\"type\":\"agentMessage\", \"message\":\"woot\"}";
         String testMessage4Len = Util.padLeftZeros(String.valueOf(testMessage4Str.length()), LENGTH_PREFIX_LENGTH);
-        testMessage1 = (testMessage3Len + testMessage3Str + testMessage4Len + testMessage4Str).getBytes(StandardCharsets.UTF_8);
-        LOGGER.info(String.format("%s Sending test message2: %s%s", loggerId, testMessage3Len, testMessage3Str));
-        LOGGER.info(String.format("%s Sending test message3: %s%s", loggerId, testMessage4Len, testMessage4Str));
-        server.send(socket, testMessage1);
+        byte[] testMessage2 = (testMessage3Len + testMessage3Str + testMessage4Len + testMessage4Str).getBytes(StandardCharsets.UTF_8);
+        connection.schedule(() -> {
+            LOGGER.info("{} Sending test message2: {}{}", loggerId, testMessage3Len, testMessage3Str);
+            LOGGER.info("{} Sending test message3: {}{}", loggerId, testMessage4Len, testMessage4Str);
+            send(ByteBuffer.wrap(testMessage2));
+        }, 4 * TEST_MESSAGE_GAP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The seconds a user in the given role may stay silent before being
+     * disconnected, or 0 for no limit.
+     */
+    private int getIdleTimeout(Role role) {
+        ServerConfig config = server.getConfig();
+        return (role == Role.agent) ? config.agentIdleTimeout : config.customerIdleTimeout;
     }
 
+    /**
+     * Clean up once the connection is closed, on the thread processing the
+     * user's bytes, after the last of them. The user is taken out of every
+     * registry, and a partly received message gives its buffer back to the
+     * pool.
+     */
     public void handleConnectionClose() {
-        LOGGER.trace(String.format("%s Connection closed. Cleaning up", loggerId));
-        server.getUsers().remove(remoteAddress);
-        switch (role) {
-        case customer:
-            server.getCustomers().remove(this);
-            // Tell all agents that customer is gone
-            for (User agent : server.getAgents()) {
-                agent.sendUserDisconnectedMessage(this);
+        LOGGER.trace("{} Connection closed. Cleaning up", loggerId);
+        server.getUsers().remove(connection, this);
+        server.removeUsername(this);
+        decoder.reset();
+        // Look at both lists rather than the role, as credentials may have
+        // been sent more than once
+        synchronized (server.getPresenceLock()) {
+            if ( server.getCustomers().remove(this) ) {
+                // Tell all agents that customer is gone
+                for (User agent : server.getAgents()) {
+                    agent.sendUserDisconnectedMessage(this);
+                }
             }
-            break;
-        case agent:
-            server.getAgents().remove(this);
-            // If this was the last agent, then tell customers.
-            if ( server.getAgents().size() == 0 ) {
-                for (User customer : server.getCustomers()) {
-                    customer.sendNoAgentsPresentMessage();
+            if ( server.getAgents().remove(this) ) {
+                // If this was the last agent, then tell customers.
+                if ( server.getAgents().size() == 0 ) {
+                    for (User customer : server.getCustomers()) {
+                        customer.sendNoAgentsPresentMessage();
+                    }
                 }
             }
-            break;
         }
     }
 
+    /**
+     * A chat message for several recipients. It is encoded once, and made
+     * into a frame at most once for each framing the recipients use. The
+     * encoder must not be used for anything else until the message is
+     * released.
+     */
+    private static class SharedMessage {
+
+        private FrameEncoder encoder;
+
+        private Frame asciiFrame;
+        private Frame binaryFrame;
+
+        SharedMessage(FrameEncoder encoder) {
+            this.encoder = encoder;
+        }
+
+        /**
+         * @throws IllegalArgumentException
+         *             if the message is too long for the framing
+         */
+        Frame getFrame(Framing framing) {
+            if ( framing == Framing.binary ) {
+                if ( binaryFrame == null ) {
+                    binaryFrame = encoder.end(framing);
+                }
+                return binaryFrame;
+            }
+            if ( asciiFrame == null ) {
+                asciiFrame = encoder.end(framing);
+            }
+            return asciiFrame;
+        }
+
+        void release() {
+            if ( asciiFrame != null ) {
+                asciiFrame.release();
+            }
+            if ( binaryFrame != null ) {
+                binaryFrame.release();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return encoder.toString();
+        }
+
+    }
+
 }
@@ -1,5 +1,6 @@
 package com.kaazing.demo.simplechat;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 public class Util {
@@ -7,6 +8,16 @@ public class Util {
     public static String bytesToString(byte[] bytes) {
         return new String(bytes, StandardCharsets.UTF_8);
     }
+
+    /**
+     * Decode the remaining bytes of the buffer without changing its position.
+     */
+    public static String bytesToString(ByteBuffer bytes) {
+        if ( bytes.hasArray() ) {
+            return new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+    }
     
     public static byte[] stringToBytes(String str) {
         return str.getBytes(StandardCharsets.UTF_8);
@@ -0,0 +1,52 @@
+package com.kaazing.demo.simplechat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.agrona.concurrent.BackoffIdleStrategy;
+import org.agrona.concurrent.BusySpinIdleStrategy;
+import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.YieldingIdleStrategy;
+
+/**
+ * How a worker thread of the {@link ProtocolFilter} waits while its ring
+ * buffer is empty, trading CPU for latency.
+ */
+public enum WorkerIdleStrategy {
+
+    /**
+     * Spin on the ring buffer, keeping a core busy for the lowest latency.
+     */
+    busyspin {
+        @Override
+        public IdleStrategy newIdleStrategy() {
+            return new BusySpinIdleStrategy();
+        }
+    },
+
+    /**
+     * Yield the core between polls of the ring buffer.
+     */
+    yielding {
+        @Override
+        public IdleStrategy newIdleStrategy() {
+            return new YieldingIdleStrategy();
+        }
+    },
+
+    /**
+     * Spin, then yield, then park for longer and longer, up to a
+     * millisecond, so an idle server uses next to no CPU.
+     */
+    backoff {
+        @Override
+        public IdleStrategy newIdleStrategy() {
+            return new BackoffIdleStrategy(100, 10, TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    };
+
+    /**
+     * A new idle strategy for one worker thread, as they keep state.
+     */
+    public abstract IdleStrategy newIdleStrategy();
+
+}
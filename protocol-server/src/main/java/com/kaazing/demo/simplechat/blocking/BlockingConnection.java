@@ -0,0 +1,472 @@
+package com.kaazing.demo.simplechat.blocking;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.kaazing.demo.simplechat.ServerConfig;
+import com.kaazing.demo.simplechat.transport.Connection;
+import com.kaazing.demo.simplechat.transport.Frame;
+import com.kaazing.demo.simplechat.transport.SlowConsumerPolicy;
+import com.kaazing.demo.simplechat.transport.Timeout;
+
+/**
+ * A connection of the {@link BlockingTransport}, served by a reader thread
+ * that blocks reading from the socket and hands what it reads to the
+ * handler, and a writer thread that blocks taking frames off the outbound
+ * queue and writing them.
+ * <p>
+ * The reader thread delivers every event of the connection, from connected
+ * to closed, and it is the one that tears the connection down, whoever
+ * closes it. Closing the socket wakes it from a blocked read.
+ * <p>
+ * The bytes queued are counted, and once they pass the high watermark the
+ * {@link SlowConsumerPolicy} applies. A paused connection's reader waits
+ * before its next read until every slow consumer has drained.
+ */
+public class BlockingConnection implements Connection {
+
+    private static final Logger logger = LogManager.getLogger(BlockingConnection.class.getName());
+
+    /**
+     * The most bytes read from a connection at once. Every connection has a
+     * buffer of its own to block reading into, so it is kept small.
+     */
+    private static final int READ_BUFFER_SIZE = 2048;
+
+    /**
+     * The most frames written to the socket in one call.
+     */
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    /**
+     * Queued to have the writer close the connection once it has written
+     * everything queued ahead of it.
+     */
+    private static final Outbound CLOSE_WHEN_WRITTEN = new Outbound(null, null);
+
+    private final int id = Connection.Ids.next();
+
+    private SocketChannel socket;
+
+    // Kept so the connection can still be identified once it is closed
+    private final SocketAddress remoteAddress;
+
+    private BlockingTransport transport;
+
+    // Interrupted to stop the writer once the connection is closed
+    private Thread writer;
+
+    // Set once the reader has let go of the connection, after which
+    // nothing more is queued
+    private volatile boolean closed;
+
+    // Frames waiting to be written
+    private BlockingQueue<Outbound> outbound = new LinkedBlockingQueue<Outbound>();
+
+    // The number of frames and bytes queued and not yet written
+    private AtomicInteger queuedFrames = new AtomicInteger();
+    private AtomicLong queuedBytes = new AtomicLong();
+
+    private int highWatermark;
+    private int lowWatermark;
+    private SlowConsumerPolicy slowConsumerPolicy;
+
+    // Set once the queue goes above the high watermark, until it drains
+    // below the low watermark again
+    private volatile boolean slow;
+
+    // Set once this connection is being disconnected for being slow
+    private AtomicBoolean disconnecting = new AtomicBoolean();
+
+    // Producers paused because of this connection, resumed once it drains
+    private Set<BlockingConnection> pausedProducers = ConcurrentHashMap.newKeySet();
+
+    // The number of slow consumers that have paused reading from this
+    // connection, which the reader waits on
+    private AtomicInteger pauses = new AtomicInteger();
+    private ReentrantLock pauseLock = new ReentrantLock();
+    private Condition resumed = pauseLock.newCondition();
+
+    // When bytes were last read
+    private volatile long lastRead = System.nanoTime();
+
+    // When the connection was accepted, and the nanoseconds it has from
+    // then to log in, or zero once it has or for no limit
+    private final long accepted = System.nanoTime();
+    private volatile long loginTimeout;
+
+    // Nanoseconds this connection may stay silent before it is closed, or
+    // zero for no limit
+    private volatile long idleTimeout;
+
+    BlockingConnection(SocketChannel socket, BlockingTransport transport, ServerConfig config) {
+        this.socket = socket;
+        this.remoteAddress = socket.socket().getRemoteSocketAddress();
+        this.transport = transport;
+        this.highWatermark = config.highWatermark;
+        this.lowWatermark = config.lowWatermark;
+        this.slowConsumerPolicy = config.slowConsumerPolicy;
+        this.loginTimeout = TimeUnit.SECONDS.toNanos(config.loginTimeout);
+    }
+
+    /**
+     * Start the threads serving this connection.
+     */
+    void start() {
+        writer = transport.newThread(this::writeLoop, String.format("writer-%d", id));
+        writer.start();
+        transport.newThread(this::readLoop, String.format("reader-%d", id)).start();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    private void readLoop() {
+        String reason = "Connection closed";
+        try {
+            transport.getHandler().connected(this);
+            ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            while (true) {
+                awaitResume();
+                readBuffer.clear();
+                if ( socket.read(readBuffer) < 0 ) {
+                    break;
+                }
+                lastRead = System.nanoTime();
+                readBuffer.flip();
+                transport.getHandler().received(this, readBuffer);
+            }
+        }
+        catch (IOException e) {
+            // Also how a read learns that the socket was closed under it
+            if ( socket.isOpen() ) {
+                reason = String.format("Read failed: %s", e.getMessage());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            logger.error("Error handling data", e);
+        }
+        finally {
+            closed(reason);
+        }
+    }
+
+    /**
+     * Wait until no slow consumer has this connection paused, or it is
+     * closed.
+     */
+    private void awaitResume() throws InterruptedException {
+        if ( pauses.get() == 0 ) {
+            return;
+        }
+        pauseLock.lock();
+        try {
+            while (pauses.get() > 0 && socket.isOpen()) {
+                resumed.await();
+            }
+        }
+        finally {
+            pauseLock.unlock();
+        }
+        // The time spent paused doesn't count towards the idle timeout
+        lastRead = System.nanoTime();
+    }
+
+    private void wakeReader() {
+        pauseLock.lock();
+        try {
+            resumed.signalAll();
+        }
+        finally {
+            pauseLock.unlock();
+        }
+    }
+
+    /**
+     * Tear the connection down once the reader is done with it: the
+     * producers it paused are resumed, the writer is stopped, whatever is
+     * still queued is released, and the handler is told.
+     */
+    private void closed(String reason) {
+        closed = true;
+        logger.info("[{}] {}", remoteAddress, reason);
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            logger.debug("[{}] Failed to close the connection: {}", remoteAddress, e.getMessage());
+        }
+        writer.interrupt();
+        // The writer may have given up on a failed write before the
+        // connection was marked closed, leaving frames queued since then
+        // that nobody else would release
+        discard();
+        resumeProducers();
+        transport.removed(this);
+        transport.getHandler().closed(this);
+    }
+
+    private void writeLoop() {
+        ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH_SIZE];
+        Outbound[] frames = new Outbound[WRITE_BATCH_SIZE];
+        try {
+            while (true) {
+                int count = 0;
+                boolean closing = false;
+                Outbound next = outbound.take();
+                do {
+                    if ( next == CLOSE_WHEN_WRITTEN ) {
+                        closing = true;
+                        break;
+                    }
+                    frames[count] = next;
+                    batch[count] = next.bytes;
+                    count++;
+                } while (count < WRITE_BATCH_SIZE && (next = outbound.poll()) != null);
+                if ( count > 0 ) {
+                    write(batch, frames, count);
+                }
+                if ( closing ) {
+                    close();
+                    return;
+                }
+            }
+        }
+        catch (IOException e) {
+            if ( !closed ) {
+                logger.debug("[{}] Write failed: {}", remoteAddress, e.getMessage());
+            }
+            close();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            discard();
+        }
+    }
+
+    private void write(ByteBuffer[] batch, Outbound[] frames, int count) throws IOException {
+        try {
+            long bytes = 0;
+            int offset = 0;
+            while (offset < count) {
+                bytes += socket.write(batch, offset, count - offset);
+                while (offset < count && !batch[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+            recordWrite(count, bytes);
+        }
+        finally {
+            for (int i = 0; i < count; i++) {
+                frames[i].release();
+                frames[i] = null;
+                batch[i] = null;
+            }
+        }
+    }
+
+    public void send(ByteBuffer frame) {
+        enqueue(frame, null, true, null);
+    }
+
+    public boolean send(Frame frame, boolean critical, Connection producer) {
+        return enqueue(frame.getBuffer().duplicate(), frame, critical, producer);
+    }
+
+    private boolean enqueue(ByteBuffer bytes, Frame frame, boolean critical, Connection producer) {
+        if ( closed ) {
+            return false;
+        }
+        int size = bytes.remaining();
+        if ( slow || queuedBytes.get() + size > highWatermark ) {
+            slow = true;
+            switch (slowConsumerPolicy) {
+            case pause:
+                if ( producer != null && producer != this && pausedProducers.add((BlockingConnection) producer) ) {
+                    ((BlockingConnection) producer).pause();
+                }
+                break;
+            case drop:
+                if ( !critical ) {
+                    return false;
+                }
+                break;
+            case disconnect:
+                if ( disconnecting.compareAndSet(false, true) ) {
+                    logger.warn("[{}] Slow consumer has {} bytes queued. Disconnecting", remoteAddress, queuedBytes.get());
+                    close();
+                }
+                return false;
+            }
+        }
+
+        queuedBytes.addAndGet(size);
+        queuedFrames.incrementAndGet();
+        outbound.offer(new Outbound(bytes, (frame != null) ? frame.retain() : null));
+        if ( closed ) {
+            // Closed meanwhile, so the writer may have missed this frame
+            discard();
+            return false;
+        }
+        return true;
+    }
+
+    private void recordWrite(int frames, long bytes) {
+        queuedFrames.addAndGet(-frames);
+        if ( queuedBytes.addAndGet(-bytes) <= lowWatermark ) {
+            slow = false;
+            if ( !pausedProducers.isEmpty() ) {
+                resumeProducers();
+            }
+        }
+    }
+
+    /**
+     * Release everything still queued once the connection is closed.
+     */
+    private void discard() {
+        Outbound pending;
+        while ((pending = outbound.poll()) != null) {
+            pending.release();
+        }
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            logger.debug("[{}] Failed to close the connection: {}", remoteAddress, e.getMessage());
+        }
+        // A paused reader isn't blocked on the socket
+        wakeReader();
+    }
+
+    public void closeWhenWritten() {
+        if ( !closed ) {
+            outbound.offer(CLOSE_WHEN_WRITTEN);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Run a task on the transport's timer thread once the delay has passed.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return transport.schedule(task, delay, unit);
+    }
+
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        idleTimeout = unit.toNanos(timeout);
+    }
+
+    public void loggedIn() {
+        loginTimeout = 0;
+    }
+
+    public int getQueuedFrames() {
+        return queuedFrames.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Whether this connection was accepted longer ago than it had to log in.
+     */
+    boolean isLoginOverdue(long now) {
+        long timeout = loginTimeout;
+        return timeout > 0 && now - accepted > timeout;
+    }
+
+    /**
+     * Whether this connection has been silent for longer than allowed. A
+     * paused connection isn't being read, so it never counts as idle.
+     */
+    boolean isIdle(long now) {
+        long timeout = idleTimeout;
+        return timeout > 0 && now - lastRead > timeout && pauses.get() == 0 && !closed;
+    }
+
+    /**
+     * Nanoseconds since bytes were last read.
+     */
+    long getIdleTime(long now) {
+        return now - lastRead;
+    }
+
+    /**
+     * Let every producer paused because of this connection read again.
+     */
+    private void resumeProducers() {
+        for (BlockingConnection producer : pausedProducers) {
+            if ( pausedProducers.remove(producer) ) {
+                producer.resume();
+            }
+        }
+    }
+
+    private void pause() {
+        pauses.incrementAndGet();
+    }
+
+    private void resume() {
+        if ( pauses.decrementAndGet() == 0 ) {
+            wakeReader();
+        }
+    }
+
+    /**
+     * A frame queued for this connection, with the view of its bytes that
+     * this connection writes from.
+     */
+    private static class Outbound {
+
+        private final ByteBuffer bytes;
+
+        // Null for frames that aren't pooled
+        private final Frame frame;
+
+        Outbound(ByteBuffer bytes, Frame frame) {
+            this.bytes = bytes;
+            this.frame = frame;
+        }
+
+        void release() {
+            if ( frame != null ) {
+                frame.release();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.kaazing.demo.simplechat.blocking;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.kaazing.demo.simplechat.ServerConfig;
+import com.kaazing.demo.simplechat.transport.ConnectionHandler;
+import com.kaazing.demo.simplechat.transport.Timeout;
+import com.kaazing.demo.simplechat.transport.Transport;
+
+/**
+ * The transport with a thread of its own for every connection, which reads
+ * with plain blocking calls, and another that writes what is queued for the
+ * connection. There are no selectors and no change requests to hand work
+ * between threads, at the cost of two threads per connection.
+ * <p>
+ * On a JDK with virtual threads (21 or later) those are what the
+ * connections get, and a blocked virtual thread costs little more than its
+ * stack, so the transport scales to as many connections as the selector
+ * based one. Older JDKs fall back to platform threads, which limits the
+ * connections to a few thousand.
+ * <p>
+ * A single timer thread runs the tasks scheduled by connections and closes
+ * those that have gone silent.
+ */
+public class BlockingTransport implements Transport, Runnable {
+
+    private static final Logger logger = LogManager.getLogger(BlockingTransport.class.getName());
+
+    /**
+     * How often connections are checked for having gone silent.
+     */
+    private static final long IDLE_SWEEP_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The stack size of the platform threads used when virtual threads
+     * aren't available. Connection threads only ever run the chat logic, so
+     * they need a fraction of the default.
+     */
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    private ServerConfig config;
+
+    private ConnectionHandler handler;
+
+    private ServerSocketChannel serverChannel;
+
+    private ThreadFactory threadFactory;
+
+    private ScheduledExecutorService timer;
+
+    private Set<BlockingConnection> connections = ConcurrentHashMap.newKeySet();
+
+    public BlockingTransport(ServerConfig config) {
+        this.config = config;
+    }
+
+    public void start(InetAddress host, int port, ConnectionHandler handler) throws IOException {
+        this.handler = handler;
+        this.threadFactory = newThreadFactory();
+
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Cancelled timeouts would otherwise stay queued until they're due
+        timer.setRemoveOnCancelPolicy(true);
+        this.timer = timer;
+        this.timer.scheduleWithFixedDelay(this::reapIdleConnections, IDLE_SWEEP_INTERVAL_MILLIS,
+                IDLE_SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.socket().bind(new InetSocketAddress(host, port), config.backlog);
+        logger.info("Server started on {}:{}", host, port);
+
+        // The acceptor is a platform thread, which keeps the server running
+        // as virtual threads never do
+        new Thread(this, "acceptor").start();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                SocketChannel socketChannel = this.serverChannel.accept();
+                logger.info("[{}] New connection", socketChannel.getRemoteAddress());
+                BlockingConnection connection = new BlockingConnection(socketChannel, this, config);
+                this.connections.add(connection);
+                connection.start();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    ConnectionHandler getHandler() {
+        return handler;
+    }
+
+    Thread newThread(Runnable task, String name) {
+        Thread thread = threadFactory.newThread(task);
+        thread.setName(name);
+        return thread;
+    }
+
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return new ExecutorTimeout(timer.schedule(task, delay, unit));
+    }
+
+    void removed(BlockingConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Close the connections that haven't logged in in time or have been
+     * silent for longer than allowed.
+     */
+    private void reapIdleConnections() {
+        long now = System.nanoTime();
+        for (BlockingConnection connection : connections) {
+            if ( connection.isLoginOverdue(now) ) {
+                logger.info("[{}] Not logged in after {} seconds. Closing the connection",
+                        connection.getRemoteAddress(), config.loginTimeout);
+                connection.close();
+            }
+            else if ( connection.isIdle(now) ) {
+                logger.info("[{}] Idle for {} seconds. Closing the connection", connection.getRemoteAddress(),
+                        TimeUnit.NANOSECONDS.toSeconds(connection.getIdleTime(now)));
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Virtual threads if the JDK has them, looked up reflectively as the
+     * server is built for Java 8, or else daemon platform threads with small
+     * stacks.
+     */
+    private static ThreadFactory newThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+            logger.info("Serving each connection with virtual threads");
+            return factory;
+        }
+        catch (ReflectiveOperationException e) {
+            // No virtual threads before Java 21, unless previews are enabled
+            logger.info("Virtual threads aren't available. Serving each connection with platform threads");
+        }
+        return r -> {
+            Thread thread = new Thread(null, r, "connection", PLATFORM_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A task scheduled on the timer thread.
+     */
+    private static class ExecutorTimeout implements Timeout {
+
+        private final ScheduledFuture<?> future;
+
+        ExecutorTimeout(ScheduledFuture<?> future) {
+            this.future = future;
+        }
+
+        public boolean cancel() {
+            return future.cancel(false);
+        }
+
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        public boolean isExpired() {
+            return future.isDone() && !future.isCancelled();
+        }
+
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.kaazing.demo.simplechat.netty;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.kaazing.demo.simplechat.ServerConfig;
+
+import io.netty.channel.EventLoop;
+
+/**
+ * Closes the connections of one event loop that haven't logged in in time
+ * or have been silent for longer than allowed, sweeping through all of them
+ * once a second as the nio reactors do. Only used on its event loop's
+ * thread, so a connection costs a set entry rather than a timer task of its
+ * own.
+ */
+class IdleSweep implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger(IdleSweep.class.getName());
+
+    /**
+     * How often the connections are checked.
+     */
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final EventLoop loop;
+
+    private final ServerConfig config;
+
+    private Set<NettyConnection> connections = new HashSet<NettyConnection>();
+
+    IdleSweep(EventLoop loop, ServerConfig config) {
+        this.loop = loop;
+        this.config = config;
+    }
+
+    void start() {
+        loop.scheduleWithFixedDelay(this, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void add(NettyConnection connection) {
+        connections.add(connection);
+    }
+
+    void remove(NettyConnection connection) {
+        connections.remove(connection);
+    }
+
+    public void run() {
+        long now = System.nanoTime();
+        Iterator<NettyConnection> i = connections.iterator();
+        while (i.hasNext()) {
+            NettyConnection connection = i.next();
+            if ( connection.isLoginOverdue(now) ) {
+                logger.info("[{}] Not logged in after {} seconds. Closing the connection",
+                        connection.getRemoteAddress(), config.loginTimeout);
+            }
+            else if ( connection.isIdle(now) ) {
+                logger.info("[{}] Idle for {} seconds. Closing the connection", connection.getRemoteAddress(),
+                        TimeUnit.NANOSECONDS.toSeconds(connection.getIdleTime(now)));
+            }
+            else {
+                continue;
+            }
+            // Closing runs channelInactive right away, so the connection
+            // leaves the set here rather than while it is being iterated
+            i.remove();
+            connection.close();
+        }
+    }
+
+}
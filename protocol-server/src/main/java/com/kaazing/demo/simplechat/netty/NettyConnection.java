@@ -0,0 +1,362 @@
+package com.kaazing.demo.simplechat.netty;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.kaazing.demo.simplechat.ServerConfig;
+import com.kaazing.demo.simplechat.transport.Connection;
+import com.kaazing.demo.simplechat.transport.ConnectionHandler;
+import com.kaazing.demo.simplechat.transport.Frame;
+import com.kaazing.demo.simplechat.transport.SlowConsumerPolicy;
+import com.kaazing.demo.simplechat.transport.Timeout;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * A connection of the {@link NettyEpollTransport}, which is also the only
+ * handler in its channel's pipeline.
+ * <p>
+ * Frames are handed straight to Netty, which queues them in the channel's
+ * outbound buffer, and the bytes not yet written are counted here so the
+ * {@link SlowConsumerPolicy} applies just as it does with the nio
+ * transport. Writes aren't flushed one by one: the first write since the
+ * last flush queues a flush behind it on the event loop, so every frame
+ * sent in the meantime goes out with the same system call.
+ */
+public class NettyConnection extends ChannelInboundHandlerAdapter implements Connection {
+
+    private static final Logger logger = LogManager.getLogger(NettyConnection.class.getName());
+
+    private final int id = Connection.Ids.next();
+
+    private final Channel channel;
+
+    // Kept so the connection can still be identified once it is closed
+    private final SocketAddress remoteAddress;
+
+    private ConnectionHandler handler;
+
+    // Checks this connection with the others of its event loop, or null if
+    // there are no timeouts
+    private IdleSweep sweep;
+
+    private int highWatermark;
+    private int lowWatermark;
+    private SlowConsumerPolicy slowConsumerPolicy;
+
+    // The frames and bytes handed to Netty and not yet written
+    private AtomicInteger queuedFrames = new AtomicInteger();
+    private AtomicLong queuedBytes = new AtomicLong();
+
+    // Set once the queue goes above the high watermark, until it drains
+    // below the low watermark again
+    private volatile boolean slow;
+
+    // Set once this connection is being disconnected for being slow
+    private AtomicBoolean disconnecting = new AtomicBoolean();
+
+    // Producers paused because of this connection, resumed once it drains
+    private Set<NettyConnection> pausedProducers = ConcurrentHashMap.newKeySet();
+
+    // The number of slow consumers that have paused reading from this
+    // connection
+    private AtomicInteger pauses = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    // Set once frames have been written and a flush is queued, only used
+    // on the event loop
+    private boolean flushPending;
+
+    private final Runnable flush = this::flush;
+
+    // When bytes were last read
+    private volatile long lastRead = System.nanoTime();
+
+    // When the connection was accepted, and the nanoseconds it has from
+    // then to log in, or zero once it has or for no limit
+    private final long accepted = System.nanoTime();
+    private volatile long loginTimeout;
+
+    // Nanoseconds this connection may stay silent before it is closed, or
+    // zero for no limit
+    private volatile long idleTimeout;
+
+    NettyConnection(Channel channel, ConnectionHandler handler, IdleSweep sweep, ServerConfig config) {
+        this.channel = channel;
+        this.remoteAddress = channel.remoteAddress();
+        this.handler = handler;
+        this.sweep = sweep;
+        this.highWatermark = config.highWatermark;
+        this.lowWatermark = config.lowWatermark;
+        this.slowConsumerPolicy = config.slowConsumerPolicy;
+        this.loginTimeout = TimeUnit.SECONDS.toNanos(config.loginTimeout);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public void channelActive(ChannelHandlerContext ctx) {
+        handler.connected(this);
+        if ( sweep != null ) {
+            sweep.add(this);
+        }
+        ctx.fireChannelActive();
+    }
+
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ByteBuf bytes = (ByteBuf) msg;
+        lastRead = System.nanoTime();
+        try {
+            // A buffer in one piece lends out a view of itself that needs
+            // no allocation
+            ByteBuffer data = (bytes.nioBufferCount() == 1)
+                    ? bytes.internalNioBuffer(bytes.readerIndex(), bytes.readableBytes())
+                    : bytes.nioBuffer();
+            handler.received(this, data);
+        }
+        finally {
+            bytes.release();
+        }
+    }
+
+    public void channelInactive(ChannelHandlerContext ctx) {
+        // Netty fails the writes still queued, which releases their frames
+        closed = true;
+        if ( sweep != null ) {
+            sweep.remove(this);
+        }
+        logger.info("[{}] Connection closed", remoteAddress);
+        logger.debug("[{}] {} bytes not written", remoteAddress, queuedBytes.get());
+        resumeProducers();
+        handler.closed(this);
+    }
+
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        logger.info("[{}] Closing the connection: {}", remoteAddress, cause.getMessage());
+        ctx.close();
+    }
+
+    public void send(ByteBuffer frame) {
+        enqueue(frame, null, true, null);
+    }
+
+    public boolean send(Frame frame, boolean critical, Connection producer) {
+        return enqueue(frame.getBuffer().duplicate(), frame, critical, producer);
+    }
+
+    private boolean enqueue(ByteBuffer bytes, Frame frame, boolean critical, Connection producer) {
+        if ( closed ) {
+            return false;
+        }
+        int size = bytes.remaining();
+        if ( slow || queuedBytes.get() + size > highWatermark ) {
+            slow = true;
+            switch (slowConsumerPolicy) {
+            case pause:
+                if ( producer != null && producer != this && pausedProducers.add((NettyConnection) producer) ) {
+                    ((NettyConnection) producer).pause();
+                }
+                break;
+            case drop:
+                if ( !critical ) {
+                    return false;
+                }
+                break;
+            case disconnect:
+                if ( disconnecting.compareAndSet(false, true) ) {
+                    logger.warn("[{}] Slow consumer has {} bytes queued. Disconnecting", remoteAddress, queuedBytes.get());
+                    close();
+                }
+                return false;
+            }
+        }
+
+        queuedBytes.addAndGet(size);
+        queuedFrames.incrementAndGet();
+        if ( frame != null ) {
+            frame.retain();
+        }
+        ByteBuf buffer = Unpooled.wrappedBuffer(bytes);
+        EventLoop loop = channel.eventLoop();
+        if ( loop.inEventLoop() ) {
+            write(buffer, size, frame);
+        }
+        else {
+            loop.execute(() -> write(buffer, size, frame));
+        }
+        return true;
+    }
+
+    /**
+     * Write a frame on the event loop, queueing a flush unless one is queued
+     * already. The flush runs after whatever the event loop has to do first,
+     * which includes any writes handed to it by now.
+     */
+    private void write(ByteBuf buffer, int size, Frame frame) {
+        // The wrapper doesn't own the memory, so the frame goes back to the
+        // pool only once it is released below, written or not
+        channel.write(buffer).addListener((ChannelFutureListener) future -> written(size, frame));
+        if ( !flushPending ) {
+            flushPending = true;
+            channel.eventLoop().execute(flush);
+        }
+    }
+
+    private void flush() {
+        flushPending = false;
+        channel.flush();
+    }
+
+    private void written(int size, Frame frame) {
+        if ( frame != null ) {
+            frame.release();
+        }
+        queuedFrames.decrementAndGet();
+        if ( queuedBytes.addAndGet(-size) <= lowWatermark ) {
+            slow = false;
+            if ( !pausedProducers.isEmpty() ) {
+                resumeProducers();
+            }
+        }
+    }
+
+    public void close() {
+        channel.close();
+    }
+
+    public void closeWhenWritten() {
+        // Behind the writes already handed to the event loop
+        channel.eventLoop().execute(
+                () -> channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE));
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return new NettyTimeout(channel.eventLoop().schedule(task, delay, unit));
+    }
+
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        idleTimeout = unit.toNanos(timeout);
+    }
+
+    public void loggedIn() {
+        loginTimeout = 0;
+    }
+
+    public int getQueuedFrames() {
+        return queuedFrames.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Whether this connection was accepted longer ago than it had to log in.
+     */
+    boolean isLoginOverdue(long now) {
+        long timeout = loginTimeout;
+        return timeout > 0 && now - accepted > timeout;
+    }
+
+    /**
+     * Whether this connection has been silent for longer than allowed. A
+     * paused connection isn't being read, so it never counts as idle.
+     */
+    boolean isIdle(long now) {
+        long timeout = idleTimeout;
+        return timeout > 0 && now - lastRead > timeout && pauses.get() == 0;
+    }
+
+    /**
+     * Nanoseconds since bytes were last read.
+     */
+    long getIdleTime(long now) {
+        return now - lastRead;
+    }
+
+    /**
+     * Let every producer paused because of this connection read again.
+     */
+    private void resumeProducers() {
+        for (NettyConnection producer : pausedProducers) {
+            if ( pausedProducers.remove(producer) ) {
+                producer.resume();
+            }
+        }
+    }
+
+    private void pause() {
+        pauses.incrementAndGet();
+        channel.eventLoop().execute(this::updateAutoRead);
+    }
+
+    private void resume() {
+        pauses.decrementAndGet();
+        channel.eventLoop().execute(this::updateAutoRead);
+    }
+
+    /**
+     * Read from the channel unless paused, on its event loop so pauses and
+     * resumes from different threads can't be applied out of order.
+     */
+    private void updateAutoRead() {
+        boolean read = (pauses.get() == 0);
+        if ( read && !channel.config().isAutoRead() ) {
+            // The time spent paused doesn't count towards the idle timeout
+            lastRead = System.nanoTime();
+        }
+        channel.config().setAutoRead(read);
+    }
+
+    /**
+     * A task scheduled on the event loop of a connection.
+     */
+    private static class NettyTimeout implements Timeout {
+
+        private final ScheduledFuture<?> future;
+
+        NettyTimeout(ScheduledFuture<?> future) {
+            this.future = future;
+        }
+
+        public boolean cancel() {
+            return future.cancel(false);
+        }
+
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        public boolean isExpired() {
+            return future.isDone() && !future.isCancelled();
+        }
+
+    }
+
+}
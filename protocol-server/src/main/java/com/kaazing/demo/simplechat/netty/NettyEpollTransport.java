@@ -0,0 +1,96 @@
+package com.kaazing.demo.simplechat.netty;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.kaazing.demo.simplechat.ServerConfig;
+import com.kaazing.demo.simplechat.transport.ConnectionHandler;
+import com.kaazing.demo.simplechat.transport.Transport;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+
+/**
+ * The transport built on Netty's native epoll support, for Linux only.
+ * <p>
+ * There is no acceptor thread. Every event loop binds a listening socket of
+ * its own with SO_REUSEPORT, so the kernel spreads new connections across
+ * them, and serves the connections it accepts itself. Sockets are watched
+ * edge-triggered, and reads go into Netty's pooled buffers. Each event loop
+ * sweeps its own connections for timeouts.
+ */
+public class NettyEpollTransport implements Transport {
+
+    private static final Logger logger = LogManager.getLogger(NettyEpollTransport.class.getName());
+
+    private ServerConfig config;
+
+    private EventLoopGroup group;
+
+    public NettyEpollTransport(ServerConfig config) {
+        this.config = config;
+    }
+
+    public void start(InetAddress host, int port, ConnectionHandler handler) throws IOException {
+        if ( !Epoll.isAvailable() ) {
+            throw new IOException("The native epoll transport isn't available", Epoll.unavailabilityCause());
+        }
+
+        this.group = new EpollEventLoopGroup(config.reactors, new DefaultThreadFactory("reactor"));
+        boolean sweeping = config.loginTimeout > 0 || config.customerIdleTimeout > 0 || config.agentIdleTimeout > 0;
+        for (EventExecutor executor : this.group) {
+            EventLoop loop = (EventLoop) executor;
+            IdleSweep sweep = null;
+            if ( sweeping ) {
+                sweep = new IdleSweep(loop, config);
+                sweep.start();
+            }
+            bind(loop, sweep, host, port, handler);
+        }
+        logger.info("Server started on {}:{} with {} epoll event loops", host, port, config.reactors);
+    }
+
+    /**
+     * Bind a listening socket of the event loop's own. Netty registers the
+     * connections a server channel accepts with its child group, so the
+     * event loop is that group too, and its connections never leave it.
+     */
+    private void bind(EventLoop loop, IdleSweep sweep, InetAddress host, int port, ConnectionHandler handler)
+            throws IOException {
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(loop, loop)
+                .channel(EpollServerSocketChannel.class)
+                .option(ChannelOption.SO_BACKLOG, config.backlog)
+                .option(EpollChannelOption.SO_REUSEPORT, true)
+                .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<EpollSocketChannel>() {
+                    protected void initChannel(EpollSocketChannel channel) {
+                        logger.info("[{}] New connection", channel.remoteAddress());
+                        channel.pipeline().addLast(new NettyConnection(channel, handler, sweep, config));
+                    }
+                });
+        ChannelFuture bound = bootstrap.bind(host, port).awaitUninterruptibly();
+        if ( !bound.isSuccess() ) {
+            throw new IOException(String.format("Failed to bind to %s:%d", host, port), bound.cause());
+        }
+    }
+
+}
@@ -5,6 +5,13 @@ import java.nio.channels.SocketChannel;
 public class ChangeRequest {
     public static final int REGISTER = 1;
     public static final int CHANGEOPS = 2;
+    public static final int CLOSE = 3;
+    // Add the ops to the interest set, keeping those already there
+    public static final int ADDOPS = 4;
+    // Read from the socket unless a slow consumer has paused it
+    public static final int READINTEREST = 5;
+    // Register a connection that starts with a WebSocket handshake
+    public static final int REGISTER_WEBSOCKET = 6;
     
     public SocketChannel socket;
     public int type;
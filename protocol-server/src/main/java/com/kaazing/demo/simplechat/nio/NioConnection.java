@@ -0,0 +1,517 @@
+package com.kaazing.demo.simplechat.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.kaazing.demo.simplechat.ServerConfig;
+import com.kaazing.demo.simplechat.transport.BufferPool;
+import com.kaazing.demo.simplechat.transport.Connection;
+import com.kaazing.demo.simplechat.transport.Frame;
+import com.kaazing.demo.simplechat.transport.SlowConsumerPolicy;
+import com.kaazing.demo.simplechat.transport.Timeout;
+
+/**
+ * The state a reactor keeps for each of its connections, attached to the
+ * connection's selection key.
+ * <p>
+ * Frames to write are kept in a lock-free queue that any thread may add to
+ * but only the owning reactor takes from, so threads sending to different
+ * users never contend with each other. The bytes queued are counted, and
+ * once they pass the high watermark the {@link SlowConsumerPolicy} applies.
+ * <p>
+ * A connection accepted on the WebSocket port has a {@link WebSocket},
+ * and each frame queued for it goes out with a WebSocket header of its own
+ * written ahead of it. The reactor frames it when it first comes up to be
+ * written, which is also when it is compressed with permessage-deflate, so
+ * the deflater is only ever used by the reactor thread.
+ */
+public class NioConnection implements Connection {
+
+    private static final Logger logger = LogManager.getLogger(NioConnection.class.getName());
+
+    private final int id = Connection.Ids.next();
+
+    private SocketChannel socket;
+
+    // Kept so the connection can still be identified once it is closed
+    private final SocketAddress remoteAddress;
+
+    private Reactor reactor;
+
+    // Null unless the connection was accepted on the WebSocket port
+    private WebSocket webSocket;
+
+    // Set once the reactor has let go of the connection, after which
+    // nothing more is queued
+    private volatile boolean closed;
+
+    // Frames waiting to be written
+    private Queue<Outbound> outbound = new ConcurrentLinkedQueue<Outbound>();
+
+    // The number of frames in the outbound queue. Only the sender that
+    // takes it from zero asks the reactor to start writing.
+    private AtomicInteger queued = new AtomicInteger();
+
+    // The number of bytes in the outbound queue not yet written
+    private AtomicLong queuedBytes = new AtomicLong();
+
+    private int highWatermark;
+    private int lowWatermark;
+    private SlowConsumerPolicy slowConsumerPolicy;
+
+    // Set once the queue goes above the high watermark, until it drains
+    // below the low watermark again
+    private volatile boolean slow;
+
+    // Set once this connection is being disconnected for being slow
+    private AtomicBoolean disconnecting = new AtomicBoolean();
+
+    // Set once this connection is to be closed when its queue is empty
+    private volatile boolean closingWhenWritten;
+
+    // Producers paused because of this connection, resumed once it drains
+    private Set<NioConnection> pausedProducers = ConcurrentHashMap.newKeySet();
+
+    // The number of slow consumers that have paused reading from this
+    // connection
+    private AtomicInteger pauses = new AtomicInteger();
+
+    private AtomicLong droppedFrames = new AtomicLong();
+
+    // When bytes were last read, only used by the reactor
+    private long lastRead = System.nanoTime();
+
+    // When the connection was accepted, and the nanoseconds it has from
+    // then to log in, or zero once it has or for no limit
+    private final long accepted = System.nanoTime();
+    private volatile long loginTimeout;
+
+    // Nanoseconds this connection may stay silent before it is closed, or
+    // zero for no limit
+    private volatile long idleTimeout;
+
+    // Write statistics, only updated by the reactor
+    private volatile long writeCalls;
+    private volatile long bytesWritten;
+
+    NioConnection(SocketChannel socket, Reactor reactor, ServerConfig config, boolean webSocket) {
+        this.socket = socket;
+        this.remoteAddress = remoteAddressOf(socket);
+        this.reactor = reactor;
+        this.webSocket = webSocket ? new WebSocket(this, reactor, config) : null;
+        this.highWatermark = config.highWatermark;
+        this.lowWatermark = config.lowWatermark;
+        this.slowConsumerPolicy = config.slowConsumerPolicy;
+        this.loginTimeout = TimeUnit.SECONDS.toNanos(config.loginTimeout);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public SocketChannel getSocket() {
+        return socket;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * The address of the remote end, or for a connection over a Unix domain
+     * socket, whose clients have no address, one made up of the socket's
+     * path and the connection's id.
+     */
+    private SocketAddress remoteAddressOf(SocketChannel socket) {
+        try {
+            SocketAddress address = socket.getRemoteAddress();
+            if ( address == null || address instanceof InetSocketAddress ) {
+                return address;
+            }
+            return new LocalAddress(socket.getLocalAddress(), id);
+        }
+        catch (IOException e) {
+            // Closed before it was registered
+            return null;
+        }
+    }
+
+    /**
+     * The WebSocket the connection's bytes go through, or null for a plain
+     * TCP connection.
+     */
+    WebSocket getWebSocket() {
+        return webSocket;
+    }
+
+    public void send(ByteBuffer frame) {
+        enqueue(frame, null, webSocket == null, true, null);
+    }
+
+    public boolean send(Frame frame, boolean critical, Connection producer) {
+        return enqueue(frame.getBuffer().duplicate(), frame, webSocket == null, critical, producer);
+    }
+
+    /**
+     * Queue bytes to be written as they are, without a WebSocket header.
+     */
+    void sendRaw(ByteBuffer bytes) {
+        enqueue(bytes, null, true, true, null);
+    }
+
+    private boolean enqueue(ByteBuffer bytes, Frame frame, boolean framed, boolean critical, Connection producer) {
+        if ( closed ) {
+            return false;
+        }
+        int size = bytes.remaining();
+        if ( slow || queuedBytes.get() + size > highWatermark ) {
+            slow = true;
+            switch (slowConsumerPolicy) {
+            case pause:
+                if ( producer != null && producer != this && pausedProducers.add((NioConnection) producer) ) {
+                    ((NioConnection) producer).pause();
+                }
+                break;
+            case drop:
+                if ( !critical ) {
+                    droppedFrames.incrementAndGet();
+                    return false;
+                }
+                break;
+            case disconnect:
+                if ( disconnecting.compareAndSet(false, true) ) {
+                    logger.warn("[{}] Slow consumer has {} bytes queued. Disconnecting", remoteAddress, queuedBytes.get());
+                    close();
+                }
+                return false;
+            }
+        }
+
+        queuedBytes.addAndGet(size);
+        outbound.offer(new Outbound(bytes, (frame != null) ? frame.retain() : null, framed));
+        if ( closed ) {
+            // Closed meanwhile, so the reactor may have missed this frame
+            discard();
+            return false;
+        }
+        if ( queued.getAndIncrement() == 0 ) {
+            if ( reactor.inReactorThread() ) {
+                reactor.writeNow(socket);
+            }
+            else {
+                reactor.requestWrite(socket);
+            }
+        }
+        return true;
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return reactor.schedule(task, delay, unit);
+    }
+
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        idleTimeout = unit.toNanos(timeout);
+    }
+
+    public void loggedIn() {
+        loginTimeout = 0;
+    }
+
+    public void close() {
+        reactor.close(socket);
+    }
+
+    public void closeWhenWritten() {
+        closingWhenWritten = true;
+        reactor.requestWrite(socket);
+    }
+
+    boolean isClosingWhenWritten() {
+        return closingWhenWritten;
+    }
+
+    public int getQueuedFrames() {
+        return Math.max(queued.get(), 0);
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * The number of frames dropped because this connection was too slow.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * The number of writes issued to the socket so far.
+     */
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * The average number of bytes handed to the socket per write, which
+     * shows how well frames are being batched.
+     */
+    public long getBytesPerWrite() {
+        long calls = writeCalls;
+        return (calls == 0) ? 0 : bytesWritten / calls;
+    }
+
+    /**
+     * Copy the bytes of the frames at the head of the queue into the array,
+     * headers and all, without removing them, so they can be written with a
+     * single gathering write. Only called by the reactor.
+     *
+     * @return the number of buffers copied
+     */
+    int peek(ByteBuffer[] batch) {
+        int frames = queued.get();
+        int i = 0;
+        Iterator<Outbound> queue = outbound.iterator();
+        while (frames-- > 0 && queue.hasNext()) {
+            Outbound next = queue.next();
+            if ( !next.framed ) {
+                frame(next);
+            }
+            if ( i + ((next.header != null) ? 2 : 1) > batch.length ) {
+                break;
+            }
+            if ( next.header != null ) {
+                batch[i++] = next.header;
+            }
+            batch[i++] = next.bytes;
+        }
+        return i;
+    }
+
+    /**
+     * Make a frame queued for the WebSocket ready to be written, compressed
+     * if permessage-deflate was negotiated and the frame is long enough.
+     */
+    private void frame(Outbound next) {
+        int size = next.bytes.remaining();
+        ByteBuffer compressed = webSocket.compress(next.bytes);
+        if ( compressed != null ) {
+            next.replace(compressed);
+        }
+        else {
+            next.header = WebSocket.header(size);
+        }
+        next.framed = true;
+        queuedBytes.addAndGet(next.remaining() - size);
+    }
+
+    void recordWrite(long bytes) {
+        writeCalls++;
+        bytesWritten += bytes;
+        if ( queuedBytes.addAndGet(-bytes) <= lowWatermark ) {
+            slow = false;
+            if ( !pausedProducers.isEmpty() ) {
+                resumeProducers();
+            }
+        }
+    }
+
+    /**
+     * Let every producer paused because of this connection read again.
+     */
+    void resumeProducers() {
+        for (NioConnection producer : pausedProducers) {
+            if ( pausedProducers.remove(producer) ) {
+                producer.resume();
+            }
+        }
+    }
+
+    void recordRead(long now) {
+        lastRead = now;
+    }
+
+    /**
+     * Whether this connection was accepted longer ago than it had to log in.
+     */
+    boolean isLoginOverdue(long now) {
+        long timeout = loginTimeout;
+        return timeout > 0 && now - accepted > timeout;
+    }
+
+    /**
+     * Whether this connection has been silent for longer than allowed. A
+     * paused connection isn't being read, so it never counts as idle.
+     */
+    boolean isIdle(long now) {
+        long timeout = idleTimeout;
+        return timeout > 0 && now - lastRead > timeout && !isPaused();
+    }
+
+    /**
+     * Nanoseconds since bytes were last read.
+     */
+    long getIdleTime(long now) {
+        return now - lastRead;
+    }
+
+    boolean isPaused() {
+        return pauses.get() > 0;
+    }
+
+    private void pause() {
+        pauses.incrementAndGet();
+        reactor.updateReadInterest(socket);
+    }
+
+    private void resume() {
+        pauses.decrementAndGet();
+        reactor.updateReadInterest(socket);
+    }
+
+    /**
+     * Remove the frames at the head of the queue that have been written in
+     * full.
+     *
+     * @return true if that emptied the queue
+     */
+    boolean removeWritten() {
+        boolean empty = false;
+        Outbound next;
+        while ((next = outbound.peek()) != null && next.isWritten()) {
+            outbound.poll().release();
+            empty = (queued.decrementAndGet() == 0);
+            if ( empty ) {
+                break;
+            }
+        }
+        return empty;
+    }
+
+    /**
+     * Mark the connection closed, once the reactor has let go of it.
+     *
+     * @return false if it was closed already
+     */
+    boolean markClosed() {
+        if ( closed ) {
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Release everything still queued once the connection is closed.
+     */
+    void discard() {
+        Outbound pending;
+        while ((pending = outbound.poll()) != null) {
+            pending.release();
+        }
+    }
+
+    /**
+     * Stands in for the address of a client connected over a Unix domain
+     * socket, so each can be told apart in the logs.
+     */
+    private static class LocalAddress extends SocketAddress {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+
+        private final int id;
+
+        LocalAddress(SocketAddress path, int id) {
+            this.path = String.valueOf(path);
+            this.id = id;
+        }
+
+        public String toString() {
+            return String.format("%s#%d", path, id);
+        }
+
+    }
+
+    /**
+     * A frame queued for this connection, with the view of its bytes that
+     * this connection writes from.
+     */
+    private static class Outbound {
+
+        // The WebSocket header written ahead of the bytes, or null
+        private ByteBuffer header;
+
+        private ByteBuffer bytes;
+
+        // Null for frames that aren't pooled
+        private Frame frame;
+
+        // Set once the bytes are ready to be written, which for a WebSocket
+        // is once the reactor has framed them
+        private boolean framed;
+
+        // Set once the bytes are a compressed frame in a buffer of their own
+        private boolean pooled;
+
+        Outbound(ByteBuffer bytes, Frame frame, boolean framed) {
+            this.bytes = bytes;
+            this.frame = frame;
+            this.framed = framed;
+        }
+
+        /**
+         * Write a compressed frame from a buffer taken from the pool instead,
+         * letting go of the frame it was compressed from.
+         */
+        void replace(ByteBuffer compressed) {
+            release();
+            bytes = compressed;
+            frame = null;
+            pooled = true;
+        }
+
+        long remaining() {
+            return bytes.remaining() + ((header != null) ? header.remaining() : 0);
+        }
+
+        boolean isWritten() {
+            return !bytes.hasRemaining() && (header == null || !header.hasRemaining());
+        }
+
+        void release() {
+            if ( frame != null ) {
+                frame.release();
+            }
+            if ( pooled ) {
+                BufferPool.get().release(bytes);
+            }
+        }
+
+    }
+
+}
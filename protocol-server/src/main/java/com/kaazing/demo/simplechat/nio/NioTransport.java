@@ -0,0 +1,260 @@
+package com.kaazing.demo.simplechat.nio;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.kaazing.demo.simplechat.ServerConfig;
+import com.kaazing.demo.simplechat.transport.ConnectionHandler;
+import com.kaazing.demo.simplechat.transport.Transport;
+
+/**
+ * The transport built on java.nio selectors. An acceptor thread takes new
+ * connections and spreads them round-robin across the {@link Reactor}s,
+ * which do all the reading and writing.
+ * <p>
+ * Browsers may also connect directly, without a gateway in between, on the
+ * WebSocket port if one is configured. The same acceptor takes those
+ * connections, and the reactors handle the WebSocket protocol.
+ * <p>
+ * A gateway on the same host may connect over a Unix domain socket instead
+ * of the TCP port, if one is configured, which spares that hop the TCP
+ * stack and an ephemeral port per connection. The acceptor waits on it
+ * alongside the ports, and the reactors serve its connections like any
+ * other.
+ */
+public class NioTransport implements Transport, Runnable {
+
+    // NIO code thanks to http://rox-xmlrpc.sourceforge.net/niotut/
+
+    private static final Logger logger = LogManager.getLogger(NioTransport.class.getName());
+
+    // The file type bits of a Unix file mode, and the type of a socket
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private ServerConfig config;
+
+    // The channel on which we'll accept connections
+    private ServerSocketChannel serverChannel;
+
+    // The channel on which we'll accept WebSocket connections, or null
+    private ServerSocketChannel webSocketChannel;
+
+    // The channel on which we'll accept connections over a Unix domain
+    // socket, or null
+    private ServerSocketChannel unixChannel;
+
+    // The selector on which the acceptor thread waits for new connections
+    private Selector selector;
+
+    // The reactors which read from and write to the accepted connections
+    private Reactor[] reactors;
+
+    private int nextReactor;
+
+    public NioTransport(ServerConfig config) {
+        this.config = config;
+    }
+
+    public void start(InetAddress host, int port, ConnectionHandler handler) throws IOException {
+        this.selector = this.initSelector(host, port);
+        this.reactors = new Reactor[config.reactors];
+        for (int i = 0; i < config.reactors; i++) {
+            this.reactors[i] = new Reactor(handler, config);
+        }
+        new Thread(this, "acceptor").start();
+    }
+
+    public void run() {
+        // Start the reactors before we begin handing connections to them
+        for (int i = 0; i < this.reactors.length; i++) {
+            new Thread(this.reactors[i], String.format("reactor-%d", i + 1)).start();
+        }
+
+        while (true) {
+            try {
+                // Wait for a new connection
+                this.selector.select();
+
+                // Iterate over the set of keys for which events are available
+                Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    if ( !key.isValid() ) {
+                        continue;
+                    }
+
+                    if ( key.isAcceptable() ) {
+                        this.accept(key);
+                    }
+                }
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+        // For an accept to be pending the channel must be a server socket channel.
+        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+
+        // Accept the connection and make it non-blocking
+        SocketChannel socketChannel = serverSocketChannel.accept();
+        if ( socketChannel == null ) {
+            return;
+        }
+        socketChannel.configureBlocking(false);
+
+        // Spread the connections round-robin across the reactors, which
+        // will be notified when there's data waiting to be read
+        Reactor reactor = this.reactors[this.nextReactor];
+        this.nextReactor = (this.nextReactor + 1) % this.reactors.length;
+        if ( serverSocketChannel == this.webSocketChannel ) {
+            logger.info("[{}] New WebSocket connection", socketChannel.getRemoteAddress());
+            reactor.registerWebSocket(socketChannel);
+        }
+        else if ( serverSocketChannel == this.unixChannel ) {
+            // The client has no address to tell it by until the reactor
+            // has made the connection
+            logger.info("New connection on {}", socketChannel.getLocalAddress());
+            reactor.register(socketChannel);
+        }
+        else {
+            logger.info("[{}] New connection", socketChannel.getRemoteAddress());
+            reactor.register(socketChannel);
+        }
+    }
+
+    private Selector initSelector(InetAddress host, int port) throws IOException {
+        // Create a new selector
+        Selector socketSelector = SelectorProvider.provider().openSelector();
+
+        // Create a new non-blocking server socket channel
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+
+        logger.info("Server started on {}:{}", host, port);
+        // Bind the server socket to the specified address and port
+        InetSocketAddress isa = new InetSocketAddress(host, port);
+        serverChannel.socket().bind(isa, config.backlog);
+
+        // Register the server socket channel, indicating an interest in
+        // accepting new connections
+        serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
+
+        if ( config.webSocketPort > 0 ) {
+            this.webSocketChannel = ServerSocketChannel.open();
+            webSocketChannel.configureBlocking(false);
+            logger.info("Accepting WebSocket connections on {}:{}", host, config.webSocketPort);
+            webSocketChannel.socket().bind(new InetSocketAddress(host, config.webSocketPort), config.backlog);
+            webSocketChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
+        }
+
+        if ( config.unixSocket != null ) {
+            this.unixChannel = openUnixChannel(config.unixSocket);
+            unixChannel.configureBlocking(false);
+            unixChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
+        }
+
+        return socketSelector;
+    }
+
+    /**
+     * Open a server channel bound to a Unix domain socket. Those came with
+     * Java 16, so they're looked up reflectively as the server is built for
+     * Java 8. A socket left behind by an earlier run is deleted first, as
+     * binding would fail otherwise, and the socket is deleted again when the
+     * server exits.
+     */
+    private ServerSocketChannel openUnixChannel(String path) throws IOException {
+        ServerSocketChannel channel;
+        SocketAddress address;
+        try {
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class)
+                    .invoke(null, path);
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            channel = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        }
+        catch (InvocationTargetException e) {
+            throw new IOException(String.format("Failed to open %s", path), e.getCause());
+        }
+        catch (IllegalArgumentException | ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets need Java 16 or later", e);
+        }
+
+        Path file = Paths.get(path);
+        if ( Files.exists(file, LinkOption.NOFOLLOW_LINKS) ) {
+            deleteStaleSocket(file, address);
+        }
+        logger.info("Accepting connections on Unix domain socket {}", path);
+        channel.bind(address, config.backlog);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.deleteIfExists(file);
+            }
+            catch (IOException e) {
+                logger.warn("Failed to delete {}: {}", path, e.getMessage());
+            }
+        }, "unix-socket"));
+        return channel;
+    }
+
+    /**
+     * Delete a socket left behind by a server that is gone. Anything else
+     * found at the path is left alone, be it a file that isn't a socket or
+     * the socket of a server still accepting connections on it.
+     */
+    private void deleteStaleSocket(Path file, SocketAddress address) throws IOException {
+        if ( !isSocket(file) ) {
+            throw new IOException(String.format("%s exists and isn't a socket", file));
+        }
+        SocketChannel probe;
+        try {
+            probe = SocketChannel.open(address);
+        }
+        catch (ConnectException e) {
+            // Nobody is listening, so the socket is stale
+            Files.delete(file);
+            logger.info("Deleted {} left behind by an earlier run", file);
+            return;
+        }
+        probe.close();
+        throw new IOException(String.format("Another server is accepting connections on %s", file));
+    }
+
+    private static boolean isSocket(Path file) throws IOException {
+        try {
+            int mode = (Integer) Files.getAttribute(file, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & S_IFMT) == S_IFSOCK;
+        }
+        catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // No file modes to go by, so settle for it being no regular
+            // file, directory or link
+            return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package com.kaazing.demo.simplechat.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.kaazing.demo.simplechat.transport.BufferPool;
+import com.kaazing.demo.simplechat.transport.ConnectionHandler;
+
+/**
+ * RFC 7692 permessage-deflate for the WebSockets of one reactor, only used
+ * by the reactor thread.
+ * <p>
+ * Deflaters and inflaters hold on to native memory and are costly to
+ * create, so the reactor keeps a pool of them. A WebSocket with context
+ * takeover holds one for as long as it is open, and one without takes one
+ * for each message and gives it back reset. The arrays bytes are moved
+ * through on their way in and out of them are shared by every WebSocket of
+ * the reactor, so compressing a message takes nothing but a buffer from the
+ * {@link BufferPool}, and inflating one nothing at all.
+ * <p>
+ * Compressing and inflating have arrays of their own, as the handler may
+ * send, and so compress, while processing the bytes just inflated.
+ */
+class PerMessageDeflate {
+
+    static final String EXTENSION = "permessage-deflate";
+
+    /**
+     * The window bits java.util.zip always compresses with.
+     */
+    static final int MAX_WINDOW_BITS = 15;
+
+    /**
+     * The most deflaters, and inflaters, kept for reuse.
+     */
+    private static final int MAX_POOLED = 256;
+
+    private static final int SCRATCH_SIZE = 16 * 1024;
+
+    /**
+     * The bytes a sync flush ends with, which aren't sent and are added
+     * back before inflating.
+     */
+    private static final byte[] TAIL = { 0x00, 0x00, (byte) 0xFF, (byte) 0xFF };
+
+    private final int threshold;
+
+    private ArrayDeque<Deflater> deflaters = new ArrayDeque<Deflater>();
+    private ArrayDeque<Inflater> inflaters = new ArrayDeque<Inflater>();
+
+    private byte[] deflateInput = new byte[SCRATCH_SIZE];
+    private byte[] deflateOutput = new byte[SCRATCH_SIZE];
+
+    private byte[] inflateInput = new byte[SCRATCH_SIZE];
+    private byte[] inflateOutput = new byte[SCRATCH_SIZE];
+    private ByteBuffer inflated = ByteBuffer.wrap(inflateOutput);
+
+    PerMessageDeflate(int threshold) {
+        this.threshold = threshold;
+    }
+
+    Deflater acquireDeflater() {
+        Deflater deflater = deflaters.pollLast();
+        return (deflater != null) ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    void release(Deflater deflater) {
+        if ( deflaters.size() < MAX_POOLED ) {
+            deflater.reset();
+            deflaters.addLast(deflater);
+        }
+        else {
+            deflater.end();
+        }
+    }
+
+    Inflater acquireInflater() {
+        Inflater inflater = inflaters.pollLast();
+        return (inflater != null) ? inflater : new Inflater(true);
+    }
+
+    void release(Inflater inflater) {
+        if ( inflaters.size() < MAX_POOLED ) {
+            inflater.reset();
+            inflaters.addLast(inflater);
+        }
+        else {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Whether a message is long enough to be worth compressing.
+     */
+    boolean isWorthCompressing(int length) {
+        return length >= threshold;
+    }
+
+    /**
+     * Compress a message into a complete binary frame with RSV1 set, written
+     * to a buffer from the pool, which the caller must release.
+     */
+    ByteBuffer compress(Deflater deflater, ByteBuffer message) {
+        int length = message.remaining();
+        // Room for the longest header, and for the little deflate adds to
+        // bytes that don't compress
+        ByteBuffer out = BufferPool.get().acquire(WebSocket.MAX_FRAME_HEADER_LENGTH + length + (length >> 10) + 64);
+        out.limit(out.capacity()).position(WebSocket.MAX_FRAME_HEADER_LENGTH);
+
+        ByteBuffer in = message.duplicate();
+        while (in.hasRemaining()) {
+            int count = Math.min(in.remaining(), deflateInput.length);
+            in.get(deflateInput, 0, count);
+            deflater.setInput(deflateInput, 0, count);
+            while (!deflater.needsInput()) {
+                out = append(out, deflater.deflate(deflateOutput));
+            }
+        }
+        int count;
+        do {
+            count = deflater.deflate(deflateOutput, 0, deflateOutput.length, Deflater.SYNC_FLUSH);
+            out = append(out, count);
+        } while (count == deflateOutput.length);
+
+        // Leave out the empty block the flush ended with, and write the
+        // header right ahead of the payload
+        int end = out.position() - TAIL.length;
+        int start = WebSocket.MAX_FRAME_HEADER_LENGTH - WebSocket.frameHeaderLength(end - WebSocket.MAX_FRAME_HEADER_LENGTH);
+        WebSocket.putFrameHeader(out, start, true, end - WebSocket.MAX_FRAME_HEADER_LENGTH);
+        out.limit(end).position(start);
+        return out;
+    }
+
+    /**
+     * Add the bytes just deflated to the output, moving it to a larger
+     * buffer if they don't fit.
+     */
+    private ByteBuffer append(ByteBuffer out, int count) {
+        if ( out.remaining() < count ) {
+            ByteBuffer larger = BufferPool.get().acquire(Math.max(out.capacity() * 2, out.position() + count));
+            larger.limit(larger.capacity());
+            out.flip();
+            larger.put(out);
+            BufferPool.get().release(out);
+            out = larger;
+        }
+        out.put(deflateOutput, 0, count);
+        return out;
+    }
+
+    /**
+     * Inflate part of a compressed message and hand whatever comes out of
+     * it to the handler.
+     */
+    void inflate(Inflater inflater, ByteBuffer data, NioConnection connection, ConnectionHandler handler)
+            throws DataFormatException {
+        while (data.hasRemaining()) {
+            int count = Math.min(data.remaining(), inflateInput.length);
+            data.get(inflateInput, 0, count);
+            inflater.setInput(inflateInput, 0, count);
+            drain(inflater, connection, handler);
+        }
+    }
+
+    /**
+     * Inflate what is left of a compressed message once its last frame has
+     * been read.
+     */
+    void finish(Inflater inflater, NioConnection connection, ConnectionHandler handler) throws DataFormatException {
+        inflater.setInput(TAIL);
+        drain(inflater, connection, handler);
+    }
+
+    private void drain(Inflater inflater, NioConnection connection, ConnectionHandler handler) throws DataFormatException {
+        int count;
+        while ((count = inflater.inflate(inflateOutput)) > 0) {
+            inflated.clear().limit(count);
+            handler.received(connection, inflated);
+        }
+        if ( inflater.needsDictionary() ) {
+            throw new DataFormatException("Preset dictionary asked for");
+        }
+        if ( inflater.finished() ) {
+            // The client ended the stream with a final block, which leaves
+            // it without a context to take over
+            inflater.reset();
+        }
+    }
+
+}
@@ -0,0 +1,457 @@
+package com.kaazing.demo.simplechat.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.kaazing.demo.simplechat.ServerConfig;
+import com.kaazing.demo.simplechat.transport.ConnectionHandler;
+import com.kaazing.demo.simplechat.transport.Timeout;
+
+/**
+ * One selector thread serving a share of the accepted connections. Each
+ * reactor owns its own selector, read buffer and pending-write state, so
+ * reactors never contend with each other.
+ */
+public class Reactor implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger(Reactor.class.getName());
+
+    /**
+     * The most frames written to a socket in one call.
+     */
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    /**
+     * The resolution of the timer wheel, and the number of ticks in a turn
+     * of it.
+     */
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * How often connections are checked for having gone silent.
+     */
+    private static final long IDLE_SWEEP_INTERVAL_MILLIS = 1000;
+
+    private ConnectionHandler handler;
+
+    // The selector we'll be monitoring
+    private Selector selector;
+
+    /**
+     * The most bytes read from a connection at once.
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    // The buffer into which we'll read data when it's available. The
+    // handler copies out any bytes it keeps, so it is reused for every read.
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // The frames handed to the socket in one gathering write
+    private ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+
+    // A queue of PendingChange instances, added to by any thread
+    private Queue<ChangeRequest> pendingChanges = new ConcurrentLinkedQueue<ChangeRequest>();
+
+    // Timeouts scheduled or cancelled by other threads, for the wheel to
+    // pick up
+    private Queue<WheelTimeout> pendingTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+
+    // Tasks scheduled to run on this thread later
+    private TimerWheel timers = new TimerWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+
+    private ServerConfig config;
+
+    // The compression of the WebSocket connections, or null if it isn't
+    // configured
+    private PerMessageDeflate deflate;
+
+    // The thread running this reactor
+    private volatile Thread thread;
+
+    public Reactor(ConnectionHandler handler, ServerConfig config) throws IOException {
+        this.handler = handler;
+        this.config = config;
+        if ( config.webSocketPort > 0 && config.webSocketDeflate ) {
+            this.deflate = new PerMessageDeflate(config.deflateThreshold);
+        }
+        this.selector = SelectorProvider.provider().openSelector();
+    }
+
+    /**
+     * Hand a newly accepted connection to this reactor. The channel is
+     * registered by the reactor thread itself on its next pass.
+     */
+    public void register(SocketChannel socket) {
+        this.pendingChanges.add(new ChangeRequest(socket, ChangeRequest.REGISTER, SelectionKey.OP_READ));
+        this.selector.wakeup();
+    }
+
+    /**
+     * Hand a newly accepted connection that starts with a WebSocket
+     * handshake to this reactor.
+     */
+    public void registerWebSocket(SocketChannel socket) {
+        this.pendingChanges.add(new ChangeRequest(socket, ChangeRequest.REGISTER_WEBSOCKET, SelectionKey.OP_READ));
+        this.selector.wakeup();
+    }
+
+    ConnectionHandler getHandler() {
+        return this.handler;
+    }
+
+    PerMessageDeflate getDeflate() {
+        return this.deflate;
+    }
+
+    /**
+     * Called when a connection's outbound queue goes from empty to non-empty.
+     */
+    void requestWrite(SocketChannel socket) {
+        // Indicate we want to write as well as read
+        this.pendingChanges.add(new ChangeRequest(socket, ChangeRequest.ADDOPS, SelectionKey.OP_WRITE));
+
+        // Finally, wake up our selecting thread so it can make the required changes
+        this.selector.wakeup();
+    }
+
+    /**
+     * Whether the calling thread is the one running this reactor.
+     */
+    boolean inReactorThread() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Called on the reactor thread when a connection's outbound queue goes
+     * from empty to non-empty. The frames are written straight away, and
+     * the selector only watches for the socket to become writable if they
+     * don't all fit.
+     */
+    void writeNow(SocketChannel socket) {
+        SelectionKey key = socket.keyFor(this.selector);
+        if ( key == null || !key.isValid() ) {
+            return;
+        }
+        try {
+            this.write(key);
+        }
+        catch (IOException e) {
+            // Leave it to the selector to find the write failing again and
+            // close the connection, rather than closing it in the middle of
+            // processing a message
+            logger.debug("[{}] Write failed: {}", ((NioConnection) key.attachment()).getRemoteAddress(), e.getMessage());
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Called when a connection is paused or resumed as a producer.
+     */
+    void updateReadInterest(SocketChannel socket) {
+        this.pendingChanges.add(new ChangeRequest(socket, ChangeRequest.READINTEREST, SelectionKey.OP_READ));
+        this.selector.wakeup();
+    }
+
+    /**
+     * Close a connection from another thread. Anything still queued for it
+     * is discarded.
+     */
+    void close(SocketChannel socket) {
+        this.pendingChanges.add(new ChangeRequest(socket, ChangeRequest.CLOSE, 0));
+        this.selector.wakeup();
+    }
+
+    /**
+     * Run a task on this reactor's thread once the delay has passed. May be
+     * called from any thread. No thread is tied up while the task waits.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        WheelTimeout timeout = new WheelTimeout(this, task, System.nanoTime() + unit.toNanos(delay));
+        if ( this.inReactorThread() ) {
+            this.timers.add(timeout);
+        }
+        else {
+            this.pendingTimeouts.add(timeout);
+            this.selector.wakeup();
+        }
+        return timeout;
+    }
+
+    /**
+     * Called when a timeout is cancelled, so the wheel can let go of it.
+     */
+    void cancelled(WheelTimeout timeout) {
+        if ( this.inReactorThread() ) {
+            this.timers.remove(timeout);
+        }
+        else {
+            this.pendingTimeouts.add(timeout);
+        }
+    }
+
+    public void run() {
+        this.thread = Thread.currentThread();
+        if ( this.config.loginTimeout > 0 || this.config.customerIdleTimeout > 0 || this.config.agentIdleTimeout > 0 ) {
+            this.schedule(this::reapIdleConnections, IDLE_SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        while (true) {
+            try {
+                // Process any pending changes
+                ChangeRequest change;
+                while ((change = this.pendingChanges.poll()) != null) {
+                    switch (change.type) {
+                    case ChangeRequest.REGISTER:
+                    case ChangeRequest.REGISTER_WEBSOCKET:
+                        NioConnection connection = new NioConnection(change.socket, this, this.config,
+                                change.type == ChangeRequest.REGISTER_WEBSOCKET);
+                        this.handler.connected(connection);
+                        change.socket.register(this.selector, change.ops, connection);
+                        break;
+                    case ChangeRequest.CHANGEOPS:
+                        SelectionKey key = change.socket.keyFor(this.selector);
+                        if ( key != null && key.isValid() ) {
+                            key.interestOps(change.ops);
+                        }
+                        break;
+                    case ChangeRequest.ADDOPS:
+                        SelectionKey addKey = change.socket.keyFor(this.selector);
+                        if ( addKey != null && addKey.isValid() ) {
+                            addKey.interestOps(addKey.interestOps() | change.ops);
+                        }
+                        break;
+                    case ChangeRequest.READINTEREST:
+                        SelectionKey readKey = change.socket.keyFor(this.selector);
+                        if ( readKey != null && readKey.isValid() ) {
+                            NioConnection reader = (NioConnection) readKey.attachment();
+                            if ( reader.isPaused() ) {
+                                readKey.interestOps(readKey.interestOps() & ~change.ops);
+                            }
+                            else {
+                                // The time spent paused doesn't count
+                                // towards the idle timeout
+                                reader.recordRead(System.nanoTime());
+                                readKey.interestOps(readKey.interestOps() | change.ops);
+                            }
+                        }
+                        break;
+                    case ChangeRequest.CLOSE:
+                        SelectionKey closeKey = change.socket.keyFor(this.selector);
+                        if ( closeKey != null ) {
+                            this.disconnect(closeKey, "Closing the connection");
+                        }
+                        else {
+                            change.socket.close();
+                        }
+                    }
+                }
+
+                // Add the timeouts scheduled by other threads to the wheel,
+                // or take them out if they've been cancelled since
+                WheelTimeout timeout;
+                while ((timeout = this.pendingTimeouts.poll()) != null) {
+                    if ( timeout.isCancelled() ) {
+                        this.timers.remove(timeout);
+                    }
+                    else {
+                        this.timers.add(timeout);
+                    }
+                }
+
+                // Wait for an event one of the registered channels, or
+                // for the next tick of the timer wheel
+                this.selector.select(this.timers.nextDelay());
+
+                // Iterate over the set of keys for which events are available
+                Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    if ( !key.isValid() ) {
+                        continue;
+                    }
+
+                    // Check what events are available and deal with them. A
+                    // connection with output queued keeps being read.
+                    if ( key.isReadable() ) {
+                        this.read(key);
+                    }
+                    if ( key.isValid() && key.isWritable() ) {
+                        try {
+                            this.write(key);
+                        }
+                        catch (IOException e) {
+                            this.disconnect(key, String.format("Write failed: %s", e.getMessage()));
+                        }
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if ( key.isValid() && connection.isClosingWhenWritten() && connection.getQueuedFrames() == 0 ) {
+                            this.disconnect(key, "Closing the connection");
+                        }
+                    }
+                }
+
+                // Run the timer tasks that have come due
+                this.timers.expire();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+
+        // Clear out our read buffer so it's ready for new data
+        this.readBuffer.clear();
+
+        // Attempt to read off the channel
+        int numRead;
+        try {
+            numRead = socketChannel.read(this.readBuffer);
+        }
+        catch (IOException e) {
+            // The remote forcibly closed the connection, cancel
+            // the selection key and close the channel.
+            this.disconnect(key, "Remote end closed the connection");
+            return;
+        }
+
+        if ( numRead == -1 ) {
+            // Remote entity shut the socket down cleanly. Do the
+            // same from our end and cancel the channel.
+            this.disconnect(key, "Remote end closed the connection");
+            return;
+        }
+        if ( numRead == 0 ) {
+            // Woken up with nothing to read
+            return;
+        }
+
+        NioConnection connection = (NioConnection) key.attachment();
+        connection.recordRead(System.nanoTime());
+        // Hand the data to the handler, which processes it right here or
+        // queues it for a worker
+        this.readBuffer.flip();
+        if ( connection.getWebSocket() != null ) {
+            connection.getWebSocket().received(this.readBuffer);
+        }
+        else {
+            this.handler.received(connection, this.readBuffer);
+        }
+    }
+
+    /**
+     * Let go of a connection that has been closed. This is the one place
+     * every closed connection goes through, however it was closed: the
+     * producers it paused are resumed, the frames still queued for it and
+     * any deflater or inflater its WebSocket holds are released, and the
+     * handler is told.
+     */
+    private void closed(NioConnection connection) {
+        if ( !connection.markClosed() ) {
+            return;
+        }
+        connection.resumeProducers();
+        connection.discard();
+        if ( connection.getWebSocket() != null ) {
+            connection.getWebSocket().release();
+        }
+        this.handler.closed(connection);
+    }
+
+    /**
+     * Close a connection ourselves or after the remote end did.
+     */
+    private void disconnect(SelectionKey key, String reason) throws IOException {
+        NioConnection connection = (NioConnection) key.attachment();
+        logger.info("[{}] {}", connection.getRemoteAddress(), reason);
+        logWriteStatistics(connection);
+        key.cancel();
+        key.channel().close();
+        this.closed(connection);
+    }
+
+    /**
+     * Close the connections that haven't logged in in time or have been
+     * silent for longer than allowed, then schedule the next sweep.
+     */
+    private void reapIdleConnections() {
+        long now = System.nanoTime();
+        for (SelectionKey key : this.selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if ( !key.isValid() || connection == null ) {
+                continue;
+            }
+            try {
+                if ( connection.isLoginOverdue(now) ) {
+                    this.disconnect(key, String.format("Not logged in after %d seconds. Closing the connection",
+                            this.config.loginTimeout));
+                }
+                else if ( connection.isIdle(now) ) {
+                    this.disconnect(key, String.format("Idle for %d seconds. Closing the connection",
+                            TimeUnit.NANOSECONDS.toSeconds(connection.getIdleTime(now))));
+                }
+            }
+            catch (IOException e) {
+                logger.debug("Failed to close idle connection: {}", e.getMessage());
+                key.cancel();
+            }
+        }
+        this.schedule(this::reapIdleConnections, IDLE_SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void logWriteStatistics(NioConnection connection) {
+        logger.debug("[{}] Wrote {} bytes in {} writes ({} bytes per write)", connection.getRemoteAddress(), connection.getBytesWritten(),
+                connection.getWriteCalls(), connection.getBytesPerWrite());
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        NioConnection connection = (NioConnection) key.attachment();
+
+        // Write until there's not more data ...
+        int count;
+        while ((count = connection.peek(this.writeBatch)) > 0) {
+            long written = socketChannel.write(this.writeBatch, 0, count);
+            connection.recordWrite(written);
+
+            boolean done = !this.writeBatch[count - 1].hasRemaining();
+            Arrays.fill(this.writeBatch, 0, count, null);
+            boolean empty = connection.removeWritten();
+            if ( !done ) {
+                // ... or the socket's buffer fills up, and we wait for it
+                // to become writable again
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            if ( empty ) {
+                break;
+            }
+        }
+
+        // We wrote away all data, so we're no longer interested
+        // in writing on this socket. Keep waiting for data. A
+        // sender that queues more from now on will ask for
+        // writing again. A connection to be closed once written stays
+        // writable, so the selector comes back to close it, rather than
+        // closing it here in the middle of processing a message.
+        if ( !connection.isClosingWhenWritten() ) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.kaazing.demo.simplechat.nio;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A hashed timing wheel, owned by a single reactor and only used on its
+ * thread.
+ * <p>
+ * Time is cut into ticks, and each timeout is linked into the bucket for
+ * the tick it is due on, so scheduling and cancelling take constant time
+ * however many timeouts are pending. Timeouts due more than a turn of the
+ * wheel away share a bucket with nearer ones and are skipped until their
+ * turn comes. Timeouts run up to a tick late, never early.
+ */
+public class TimerWheel {
+
+    private static final Logger logger = LogManager.getLogger(TimerWheel.class.getName());
+
+    private final long tickNanos;
+
+    // The first timeout of each bucket. The number of buckets is a power of
+    // two, so a tick maps to its bucket with a mask.
+    private final WheelTimeout[] buckets;
+    private final int mask;
+
+    private final long start = System.nanoTime();
+
+    // The next tick to be processed
+    private long currentTick;
+
+    private int pending;
+
+    // Set while due timeouts are being run
+    private boolean expiring;
+
+    public TimerWheel(long tickDuration, TimeUnit unit, int bucketCount) {
+        if ( Integer.bitCount(bucketCount) != 1 ) {
+            throw new IllegalArgumentException("The number of buckets must be a power of two");
+        }
+        this.tickNanos = Math.max(unit.toNanos(tickDuration), 1);
+        this.buckets = new WheelTimeout[bucketCount];
+        this.mask = bucketCount - 1;
+    }
+
+    /**
+     * The number of timeouts waiting to run.
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    void add(WheelTimeout timeout) {
+        if ( timeout.bucket >= 0 || timeout.isCancelled() ) {
+            return;
+        }
+        long ticks = (timeout.deadline - start + tickNanos - 1) / tickNanos;
+        // A timeout added by a task that is running goes no earlier than
+        // the next tick, as the bucket for this one is being emptied
+        timeout.deadlineTick = Math.max(ticks, expiring ? currentTick + 1 : currentTick);
+        int index = (int) (timeout.deadlineTick & mask);
+        timeout.bucket = index;
+        timeout.prev = null;
+        timeout.next = buckets[index];
+        if ( timeout.next != null ) {
+            timeout.next.prev = timeout;
+        }
+        buckets[index] = timeout;
+        pending++;
+    }
+
+    void remove(WheelTimeout timeout) {
+        if ( timeout.bucket < 0 ) {
+            return;
+        }
+        if ( timeout.prev != null ) {
+            timeout.prev.next = timeout.next;
+        }
+        else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if ( timeout.next != null ) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.bucket = -1;
+        timeout.prev = null;
+        timeout.next = null;
+        pending--;
+    }
+
+    /**
+     * How long the reactor may block before the next timeout could be due,
+     * in milliseconds, or 0 if nothing is scheduled. The buckets are looked
+     * at no further than a turn of the wheel ahead, so an idle reactor only
+     * wakes up for ticks with timeouts in them, or once a turn.
+     */
+    long nextDelay() {
+        if ( pending == 0 ) {
+            return 0;
+        }
+        long tick = currentTick;
+        long lastTick = currentTick + mask;
+        while (tick < lastTick && buckets[(int) (tick & mask)] == null) {
+            tick++;
+        }
+        long nanos = start + tick * tickNanos - System.nanoTime();
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(nanos + 999999), 1);
+    }
+
+    /**
+     * Run every timeout that has come due.
+     */
+    void expire() {
+        long nowTick = (System.nanoTime() - start) / tickNanos;
+        if ( pending == 0 ) {
+            currentTick = nowTick + 1;
+            return;
+        }
+        expiring = true;
+        while (currentTick <= nowTick && pending > 0) {
+            int index = (int) (currentTick & mask);
+            WheelTimeout timeout = buckets[index];
+            while (timeout != null) {
+                WheelTimeout next = timeout.next;
+                if ( timeout.deadlineTick <= currentTick ) {
+                    remove(timeout);
+                    try {
+                        timeout.expire();
+                    }
+                    catch (Exception e) {
+                        logger.error("Error running timer task", e);
+                    }
+                    if ( next != null && next.bucket != index ) {
+                        // The task cancelled the next timeout, so start
+                        // over with what is left of the bucket
+                        next = buckets[index];
+                    }
+                }
+                timeout = next;
+            }
+            currentTick++;
+        }
+        expiring = false;
+        if ( pending == 0 ) {
+            currentTick = nowTick + 1;
+        }
+    }
+
+}
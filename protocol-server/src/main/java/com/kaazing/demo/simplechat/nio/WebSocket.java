@@ -0,0 +1,651 @@
+package com.kaazing.demo.simplechat.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.kaazing.demo.simplechat.ServerConfig;
+import com.kaazing.demo.simplechat.transport.ConnectionHandler;
+
+/**
+ * The server end of an RFC 6455 WebSocket, for a connection accepted on the
+ * WebSocket port. Only used by the reactor serving the connection.
+ * <p>
+ * Browsers send the same length-prefixed messages over a WebSocket as other
+ * clients send over TCP, so the payload of every data frame, binary or text,
+ * is unmasked in the reactor's read buffer and handed straight to the
+ * handler as it arrives. Frame and fragment boundaries don't need to line
+ * up with messages, as the frame decoder reassembles them anyway.
+ * <p>
+ * Going the other way, each frame queued for the connection is sent as a
+ * binary WebSocket frame of its own. The frames are shared with TCP
+ * connections, so the WebSocket header is written ahead of them by the
+ * connection instead of being encoded into them.
+ * <p>
+ * With permessage-deflate configured and offered by the client, the
+ * messages the client compressed are inflated on their way to the handler,
+ * and frames at least as long as the threshold are compressed by the
+ * reactor just before they are written, with the {@link PerMessageDeflate}
+ * of the reactor.
+ */
+class WebSocket {
+
+    private static final Logger logger = LogManager.getLogger(WebSocket.class.getName());
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /**
+     * The longest handshake request accepted.
+     */
+    private static final int MAX_HANDSHAKE_SIZE = 8192;
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private static final int RSV1 = 0x40;
+
+    private static final int STATUS_PROTOCOL_ERROR = 1002;
+    private static final int STATUS_INVALID_PAYLOAD = 1007;
+
+    /**
+     * The longest payload of a control frame.
+     */
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+
+    private static final int MAX_HEADER_LENGTH = 14;
+
+    /**
+     * The longest header of a frame sent by the server, which is never
+     * masked.
+     */
+    static final int MAX_FRAME_HEADER_LENGTH = 10;
+
+    private enum State {
+        handshake, open, closed
+    }
+
+    private final NioConnection connection;
+
+    private final ConnectionHandler handler;
+
+    private final ServerConfig config;
+
+    // The reactor's compression, or null if it isn't configured
+    private final PerMessageDeflate deflate;
+
+    private State state = State.handshake;
+
+    // The handshake request read so far
+    private ByteBuffer request = ByteBuffer.allocate(1024);
+
+    // The header of the frame being read, until it is complete
+    private byte[] header = new byte[MAX_HEADER_LENGTH];
+    private int headerLength;
+
+    // The frame being read, once its header is complete
+    private boolean inFrame;
+    private int opcode;
+    private long payloadRemaining;
+    private byte[] mask = new byte[4];
+    private int maskIndex;
+    private boolean finalFrame;
+
+    // Set while a fragmented data message is being read
+    private boolean fragmented;
+
+    // Set once permessage-deflate has been negotiated, and for whichever
+    // end the context isn't taken over from one message to the next
+    private boolean deflating;
+    private boolean serverNoContextTakeover;
+    private boolean clientNoContextTakeover;
+
+    // Set while the message being read is compressed
+    private boolean compressed;
+
+    // Held from one message to the next with context takeover, otherwise
+    // only while a message is being compressed or inflated
+    private Deflater deflater;
+    private Inflater inflater;
+
+    // The payload of the control frame being read
+    private byte[] control = new byte[MAX_CONTROL_PAYLOAD];
+    private int controlLength;
+
+    WebSocket(NioConnection connection, Reactor reactor, ServerConfig config) {
+        this.connection = connection;
+        this.handler = reactor.getHandler();
+        this.config = config;
+        this.deflate = reactor.getDeflate();
+    }
+
+    /**
+     * Process bytes read from the connection, which may be changed in place.
+     */
+    void received(ByteBuffer data) {
+        if ( state == State.handshake ) {
+            handshake(data);
+        }
+        while (state == State.open && data.hasRemaining()) {
+            if ( !inFrame ) {
+                readHeader(data);
+            }
+            else if ( isControl(opcode) ) {
+                readControl(data);
+            }
+            else {
+                readPayload(data);
+            }
+        }
+    }
+
+    /**
+     * Compress a message the server sends, if permessage-deflate was
+     * negotiated and the message is worth it.
+     *
+     * @return a complete frame, in a buffer from the pool that the caller
+     *         must release, or null to send the message uncompressed
+     */
+    ByteBuffer compress(ByteBuffer message) {
+        if ( !deflating || state == State.closed || !deflate.isWorthCompressing(message.remaining()) ) {
+            return null;
+        }
+        Deflater deflater = (this.deflater != null) ? this.deflater : deflate.acquireDeflater();
+        ByteBuffer frame = deflate.compress(deflater, message);
+        if ( serverNoContextTakeover ) {
+            deflate.release(deflater);
+        }
+        else {
+            this.deflater = deflater;
+        }
+        return frame;
+    }
+
+    /**
+     * Give back the deflater and inflater held, once the connection is
+     * closed.
+     */
+    void release() {
+        state = State.closed;
+        if ( deflater != null ) {
+            deflate.release(deflater);
+            deflater = null;
+        }
+        if ( inflater != null ) {
+            deflate.release(inflater);
+            inflater = null;
+        }
+    }
+
+    /**
+     * The header of an unmasked binary frame, to be written ahead of the
+     * given number of bytes.
+     */
+    static ByteBuffer header(int length) {
+        ByteBuffer header = ByteBuffer.allocate(frameHeaderLength(length));
+        putFrameHeader(header, 0, false, length);
+        return header;
+    }
+
+    static int frameHeaderLength(int length) {
+        return (length <= 125) ? 2 : (length <= 0xFFFF) ? 4 : 10;
+    }
+
+    /**
+     * Write the header of an unmasked binary frame at the given index,
+     * leaving the buffer's position alone.
+     */
+    static void putFrameHeader(ByteBuffer buffer, int index, boolean compressed, int length) {
+        buffer.put(index, (byte) (0x80 | (compressed ? RSV1 : 0) | OPCODE_BINARY));
+        if ( length <= 125 ) {
+            buffer.put(index + 1, (byte) length);
+        }
+        else if ( length <= 0xFFFF ) {
+            buffer.put(index + 1, (byte) 126).putShort(index + 2, (short) length);
+        }
+        else {
+            buffer.put(index + 1, (byte) 127).putLong(index + 2, length);
+        }
+    }
+
+    private void handshake(ByteBuffer data) {
+        int end = -1;
+        while (data.hasRemaining() && end < 0) {
+            if ( !request.hasRemaining() ) {
+                if ( request.capacity() >= MAX_HANDSHAKE_SIZE ) {
+                    reject("431 Request Header Fields Too Large", "The handshake request is too long");
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(request.capacity() * 2);
+                request.flip();
+                request = larger.put(request);
+            }
+            request.put(data.get());
+            int length = request.position();
+            if ( length >= 4 && request.get(length - 4) == '\r' && request.get(length - 3) == '\n'
+                    && request.get(length - 2) == '\r' && request.get(length - 1) == '\n' ) {
+                end = length;
+            }
+        }
+        if ( end < 0 ) {
+            return;
+        }
+
+        String[] lines = new String(request.array(), 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+        request = null;
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if ( colon > 0 ) {
+                // A header may be repeated, which is the same as listing
+                // its values in one
+                headers.merge(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim(),
+                        (first, next) -> first + ", " + next);
+            }
+        }
+
+        String key = headers.get("sec-websocket-key");
+        if ( !lines[0].startsWith("GET ") || !"websocket".equalsIgnoreCase(headers.get("upgrade"))
+                || !hasToken(headers.get("connection"), "upgrade") || key == null ) {
+            reject("400 Bad Request", String.format("Not a WebSocket handshake: %s", lines[0]));
+            return;
+        }
+        if ( !"13".equals(headers.get("sec-websocket-version")) ) {
+            reject("426 Upgrade Required\r\nSec-WebSocket-Version: 13",
+                    String.format("Unsupported WebSocket version %s", headers.get("sec-websocket-version")));
+            return;
+        }
+
+        String extensions = (deflate != null) ? negotiateDeflate(headers.get("sec-websocket-extensions")) : null;
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n"
+                + ((extensions != null) ? "Sec-WebSocket-Extensions: " + extensions + "\r\n" : "")
+                + "\r\n";
+        connection.sendRaw(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+        state = State.open;
+        logger.info("[{}] WebSocket opened for {}", connection.getRemoteAddress(), lines[0]);
+    }
+
+    private void reject(String status, String reason) {
+        logger.info("[{}] {}", connection.getRemoteAddress(), reason);
+        String response = "HTTP/1.1 " + status + "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n";
+        connection.sendRaw(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+        state = State.closed;
+        connection.close();
+    }
+
+    /**
+     * Accept the first offer of permessage-deflate that can be met, if any.
+     *
+     * @return the extension to answer with, or null for none
+     */
+    private String negotiateDeflate(String offers) {
+        if ( offers == null ) {
+            return null;
+        }
+        for (String offer : offers.split(",")) {
+            String[] params = offer.split(";");
+            if ( params[0].trim().equalsIgnoreCase(PerMessageDeflate.EXTENSION) ) {
+                String response = acceptDeflate(params);
+                if ( response != null ) {
+                    return response;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Accept an offer of permessage-deflate, unless it has parameters that
+     * are unknown, repeated, or can't be met.
+     *
+     * @return the extension to answer with, or null to decline the offer
+     */
+    private String acceptDeflate(String[] params) {
+        boolean serverNoContextTakeover = config.deflateNoContextTakeover;
+        boolean clientNoContextTakeover = config.deflateNoContextTakeover;
+        // Not offered unless set
+        int clientWindowBits = -1;
+        Set<String> seen = new HashSet<String>();
+        for (int i = 1; i < params.length; i++) {
+            String name = params[i].trim();
+            String value = null;
+            int equals = name.indexOf('=');
+            if ( equals >= 0 ) {
+                value = name.substring(equals + 1).trim().replace("\"", "");
+                name = name.substring(0, equals).trim();
+            }
+            name = name.toLowerCase(Locale.ROOT);
+            if ( !seen.add(name) ) {
+                return null;
+            }
+            switch (name) {
+            case "server_no_context_takeover":
+                if ( value != null ) {
+                    return null;
+                }
+                serverNoContextTakeover = true;
+                break;
+            case "client_no_context_takeover":
+                if ( value != null ) {
+                    return null;
+                }
+                clientNoContextTakeover = true;
+                break;
+            case "server_max_window_bits":
+                // java.util.zip only compresses with the largest window
+                if ( windowBits(value) != PerMessageDeflate.MAX_WINDOW_BITS ) {
+                    return null;
+                }
+                break;
+            case "client_max_window_bits":
+                clientWindowBits = (value != null) ? windowBits(value) : PerMessageDeflate.MAX_WINDOW_BITS;
+                if ( clientWindowBits < 0 ) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+            }
+        }
+
+        StringBuilder response = new StringBuilder(PerMessageDeflate.EXTENSION);
+        if ( serverNoContextTakeover ) {
+            response.append("; server_no_context_takeover");
+        }
+        if ( clientNoContextTakeover ) {
+            response.append("; client_no_context_takeover");
+        }
+        // Clients may only be asked for fewer window bits if they said
+        // they can do with fewer
+        if ( clientWindowBits >= 0 && Math.min(clientWindowBits, config.deflateClientWindowBits) < PerMessageDeflate.MAX_WINDOW_BITS ) {
+            response.append("; client_max_window_bits=").append(Math.min(clientWindowBits, config.deflateClientWindowBits));
+        }
+        this.deflating = true;
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        return response.toString();
+    }
+
+    /**
+     * The window bits given as a parameter value, or -1 if they are invalid.
+     */
+    private static int windowBits(String value) {
+        if ( value != null && value.matches("[0-9]{1,2}") ) {
+            int bits = Integer.parseInt(value);
+            if ( bits >= 8 && bits <= PerMessageDeflate.MAX_WINDOW_BITS ) {
+                return bits;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean hasToken(String value, String token) {
+        if ( value == null ) {
+            return false;
+        }
+        for (String part : value.split(",")) {
+            if ( part.trim().equalsIgnoreCase(token) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every JRE has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void readHeader(ByteBuffer data) {
+        while (data.hasRemaining() && headerLength < headerLength()) {
+            header[headerLength++] = data.get();
+        }
+        if ( headerLength < headerLength() ) {
+            return;
+        }
+
+        finalFrame = (header[0] & 0x80) != 0;
+        int rsv = header[0] & 0x70;
+        opcode = header[0] & 0x0F;
+        boolean masked = (header[1] & 0x80) != 0;
+        int length = header[1] & 0x7F;
+        long payloadLength;
+        int maskOffset;
+        if ( length == 126 ) {
+            payloadLength = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            maskOffset = 4;
+        }
+        else if ( length == 127 ) {
+            payloadLength = ByteBuffer.wrap(header, 2, 8).getLong();
+            maskOffset = 10;
+        }
+        else {
+            payloadLength = length;
+            maskOffset = 2;
+        }
+        headerLength = 0;
+
+        // Only the first frame of a message may be marked as compressed
+        if ( rsv != 0 && (rsv != RSV1 || !deflating || (opcode != OPCODE_TEXT && opcode != OPCODE_BINARY)) ) {
+            fail("Reserved bits set without an extension");
+            return;
+        }
+        if ( !masked ) {
+            fail("Unmasked frame from the client");
+            return;
+        }
+        if ( payloadLength < 0 ) {
+            fail("Invalid payload length");
+            return;
+        }
+        if ( isControl(opcode) ) {
+            if ( !finalFrame || payloadLength > MAX_CONTROL_PAYLOAD ) {
+                fail("Fragmented or oversized control frame");
+                return;
+            }
+            if ( opcode != OPCODE_CLOSE && opcode != OPCODE_PING && opcode != OPCODE_PONG ) {
+                fail(String.format("Unknown opcode %d", opcode));
+                return;
+            }
+        }
+        else if ( opcode == OPCODE_CONTINUATION ) {
+            if ( !fragmented ) {
+                fail("Continuation frame without a message to continue");
+                return;
+            }
+            fragmented = !finalFrame;
+        }
+        else if ( opcode == OPCODE_TEXT || opcode == OPCODE_BINARY ) {
+            if ( fragmented ) {
+                fail("New message before the last one was finished");
+                return;
+            }
+            fragmented = !finalFrame;
+            compressed = (rsv != 0);
+        }
+        else {
+            fail(String.format("Unknown opcode %d", opcode));
+            return;
+        }
+
+        System.arraycopy(header, maskOffset, mask, 0, 4);
+        maskIndex = 0;
+        payloadRemaining = payloadLength;
+        controlLength = 0;
+        inFrame = true;
+        if ( payloadLength == 0 ) {
+            inFrame = false;
+            if ( isControl(opcode) ) {
+                handleControl();
+            }
+            else {
+                endFrame();
+            }
+        }
+    }
+
+    /**
+     * The length of the header being read, as far as can be told from the
+     * bytes read so far.
+     */
+    private int headerLength() {
+        if ( headerLength < 2 ) {
+            return 2;
+        }
+        int length = header[1] & 0x7F;
+        int extended = (length == 126) ? 2 : (length == 127) ? 8 : 0;
+        return 2 + extended + (((header[1] & 0x80) != 0) ? 4 : 0);
+    }
+
+    private static boolean isControl(int opcode) {
+        return (opcode & 0x8) != 0;
+    }
+
+    /**
+     * Unmask as much of a data frame's payload as has been read, and hand it
+     * to the handler, inflated if the message is compressed.
+     */
+    private void readPayload(ByteBuffer data) {
+        int start = data.position();
+        int count = (int) Math.min(payloadRemaining, data.remaining());
+        unmask(data, start, count);
+        int limit = data.limit();
+        data.limit(start + count);
+        try {
+            if ( compressed ) {
+                deflate.inflate(inflater(), data, connection, handler);
+            }
+            else {
+                handler.received(connection, data);
+            }
+        }
+        catch (DataFormatException e) {
+            fail(STATUS_INVALID_PAYLOAD, String.format("Invalid compressed data: %s", e.getMessage()));
+        }
+        data.limit(limit);
+        data.position(start + count);
+        payloadRemaining -= count;
+        if ( payloadRemaining == 0 && state == State.open ) {
+            inFrame = false;
+            endFrame();
+        }
+    }
+
+    /**
+     * Finish inflating a compressed message once its last frame has been
+     * read.
+     */
+    private void endFrame() {
+        if ( !finalFrame || !compressed ) {
+            return;
+        }
+        compressed = false;
+        try {
+            deflate.finish(inflater(), connection, handler);
+        }
+        catch (DataFormatException e) {
+            fail(STATUS_INVALID_PAYLOAD, String.format("Invalid compressed data: %s", e.getMessage()));
+            return;
+        }
+        if ( clientNoContextTakeover ) {
+            deflate.release(inflater);
+            inflater = null;
+        }
+    }
+
+    private Inflater inflater() {
+        if ( inflater == null ) {
+            inflater = deflate.acquireInflater();
+        }
+        return inflater;
+    }
+
+    private void readControl(ByteBuffer data) {
+        int start = data.position();
+        int count = (int) Math.min(payloadRemaining, data.remaining());
+        unmask(data, start, count);
+        data.get(control, controlLength, count);
+        controlLength += count;
+        payloadRemaining -= count;
+        if ( payloadRemaining == 0 ) {
+            inFrame = false;
+            handleControl();
+        }
+    }
+
+    private void handleControl() {
+        switch (opcode) {
+        case OPCODE_PING:
+            connection.sendRaw(controlFrame(OPCODE_PONG, control, controlLength));
+            break;
+        case OPCODE_CLOSE:
+            // Echo the status code, if any, and close the connection
+            logger.info("[{}] WebSocket closed by the client", connection.getRemoteAddress());
+            connection.sendRaw(controlFrame(OPCODE_CLOSE, control, Math.min(controlLength, 2)));
+            state = State.closed;
+            connection.close();
+            break;
+        default:
+            // Pongs need no answer
+        }
+    }
+
+    private void unmask(ByteBuffer data, int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            data.put(i, (byte) (data.get(i) ^ mask[maskIndex]));
+            maskIndex = (maskIndex + 1) & 3;
+        }
+    }
+
+    /**
+     * Close the WebSocket after the client broke the protocol.
+     */
+    private void fail(String reason) {
+        fail(STATUS_PROTOCOL_ERROR, reason);
+    }
+
+    private void fail(int code, String reason) {
+        logger.info("[{}] WebSocket protocol error: {}", connection.getRemoteAddress(), reason);
+        byte[] status = { (byte) (code >> 8), (byte) code };
+        connection.sendRaw(controlFrame(OPCODE_CLOSE, status, status.length));
+        state = State.closed;
+        connection.close();
+    }
+
+    /**
+     * A complete, unmasked control frame.
+     */
+    private static ByteBuffer controlFrame(int opcode, byte[] payload, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(2 + length);
+        frame.put((byte) (0x80 | opcode)).put((byte) length).put(payload, 0, length);
+        frame.flip();
+        return frame;
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.kaazing.demo.simplechat.nio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kaazing.demo.simplechat.transport.Timeout;
+
+/**
+ * A timeout kept in the {@link TimerWheel} of a reactor.
+ */
+class WheelTimeout implements Timeout {
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final Reactor reactor;
+
+    private final Runnable task;
+
+    // When the task is due, in System.nanoTime() terms
+    final long deadline;
+
+    private AtomicInteger state = new AtomicInteger(PENDING);
+
+    // The tick of the wheel the task runs on, and its neighbours in the
+    // bucket for that tick, only used by the reactor
+    long deadlineTick;
+    int bucket = -1;
+    WheelTimeout prev;
+    WheelTimeout next;
+
+    WheelTimeout(Reactor reactor, Runnable task, long deadline) {
+        this.reactor = reactor;
+        this.task = task;
+        this.deadline = deadline;
+    }
+
+    public boolean cancel() {
+        if ( !state.compareAndSet(PENDING, CANCELLED) ) {
+            return false;
+        }
+        reactor.cancelled(this);
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    public boolean isExpired() {
+        return state.get() == EXPIRED;
+    }
+
+    /**
+     * Run the task, unless it has been cancelled meanwhile.
+     */
+    void expire() {
+        if ( state.compareAndSet(PENDING, EXPIRED) ) {
+            task.run();
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+package com.kaazing.demo.simplechat.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A pool of direct byte buffers shared by every thread, used for the frames
+ * written to connections and the messages received in pieces.
+ * <p>
+ * Buffers come in size classes, powers of two from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}, each with its own free list. Every buffer that is
+ * acquired must be released exactly once, after which it must not be used
+ * again. Larger requests are served with heap buffers that aren't pooled.
+ * <p>
+ * With leak detection on, the pool remembers where every outstanding buffer
+ * was acquired, complains about buffers released twice, and logs the
+ * buffers still outstanding when the server stops.
+ */
+public class BufferPool {
+
+    private static final Logger logger = LogManager.getLogger(BufferPool.class.getName());
+
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 16;
+
+    public static final int MIN_SIZE = 1 << MIN_SHIFT;
+    public static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+    /**
+     * The most bytes kept on each free list. Buffers released beyond that
+     * are left to the garbage collector.
+     */
+    private static final int MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
+    private static final BufferPool POOL = new BufferPool();
+
+    private SizeClass[] sizeClasses = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    private volatile boolean leakDetection;
+
+    // Where each outstanding buffer was acquired, only kept with leak
+    // detection on
+    private Map<ByteBuffer, Throwable> outstanding = Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>());
+
+    private BufferPool() {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(1 << (i + MIN_SHIFT));
+        }
+    }
+
+    /**
+     * The pool shared by every thread.
+     */
+    public static BufferPool get() {
+        return POOL;
+    }
+
+    /**
+     * Turn on leak detection. This is costly, so it is meant for debugging
+     * only, and must be done before any buffer is acquired.
+     */
+    public void enableLeakDetection() {
+        if ( leakDetection ) {
+            return;
+        }
+        leakDetection = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::logOutstanding, "buffer-leaks"));
+    }
+
+    /**
+     * Take a buffer of at least the given size from the pool. Its position
+     * is zero and its limit is the size asked for.
+     */
+    public ByteBuffer acquire(int size) {
+        ByteBuffer buffer;
+        SizeClass sizeClass = sizeClassOf(size);
+        if ( sizeClass == null ) {
+            buffer = ByteBuffer.allocate(size);
+        }
+        else {
+            buffer = sizeClass.take();
+            buffer.clear().limit(size);
+        }
+        if ( leakDetection ) {
+            outstanding.put(buffer, new Throwable(String.format("Buffer of %d bytes acquired", size)));
+        }
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool.
+     *
+     * @throws IllegalStateException
+     *             with leak detection on, if the buffer isn't outstanding
+     */
+    public void release(ByteBuffer buffer) {
+        if ( leakDetection && outstanding.remove(buffer) == null ) {
+            throw new IllegalStateException("Buffer released twice, or not acquired from the pool");
+        }
+        if ( buffer.isDirect() ) {
+            SizeClass sizeClass = sizeClassOf(buffer.capacity());
+            if ( sizeClass != null && sizeClass.size == buffer.capacity() ) {
+                sizeClass.put(buffer);
+            }
+        }
+    }
+
+    /**
+     * The number of buffers acquired and not yet released, only known with
+     * leak detection on.
+     */
+    public int getOutstanding() {
+        return outstanding.size();
+    }
+
+    /**
+     * Log where each buffer not yet released was acquired.
+     */
+    public void logOutstanding() {
+        List<Throwable> sites;
+        synchronized (outstanding) {
+            sites = new ArrayList<Throwable>(outstanding.values());
+        }
+        logger.info("{} buffers outstanding", sites.size());
+        for (Throwable site : sites) {
+            logger.warn("Buffer not released", site);
+        }
+    }
+
+    private SizeClass sizeClassOf(int size) {
+        if ( size > MAX_SIZE ) {
+            return null;
+        }
+        if ( size <= MIN_SIZE ) {
+            return sizeClasses[0];
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return sizeClasses[shift - MIN_SHIFT];
+    }
+
+    /**
+     * The free buffers of one size. The monitor is only held to push or pop
+     * a buffer, and an array deque needs no allocation to do either.
+     */
+    private static class SizeClass {
+
+        private final int size;
+
+        private final int maxPooled;
+
+        private ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+        SizeClass(int size) {
+            this.size = size;
+            this.maxPooled = Math.max(MAX_POOLED_BYTES / size, 16);
+        }
+
+        ByteBuffer take() {
+            ByteBuffer buffer;
+            synchronized (this) {
+                buffer = free.pollLast();
+            }
+            return (buffer != null) ? buffer : ByteBuffer.allocateDirect(size);
+        }
+
+        void put(ByteBuffer buffer) {
+            synchronized (this) {
+                if ( free.size() < maxPooled ) {
+                    free.addLast(buffer);
+                }
+            }
+        }
+
+    }
+
+}
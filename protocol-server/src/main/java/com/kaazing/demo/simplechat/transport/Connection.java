@@ -0,0 +1,112 @@
+package com.kaazing.demo.simplechat.transport;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection accepted by a {@link Transport}. Every method may be called
+ * from any thread.
+ * <p>
+ * Transports count the bytes queued for each connection, and once they pass
+ * the high watermark the {@link SlowConsumerPolicy} applies.
+ */
+public interface Connection {
+
+    /**
+     * A number identifying this connection among those open, always
+     * positive.
+     */
+    int getId();
+
+    /**
+     * The address of the remote end, still known once the connection is
+     * closed.
+     */
+    SocketAddress getRemoteAddress();
+
+    /**
+     * Queue a critical frame to be written.
+     */
+    void send(ByteBuffer frame);
+
+    /**
+     * Queue a pooled frame to be written, applying the slow consumer policy
+     * if too much is queued already. The connection takes a reference to
+     * the frame of its own, which it releases once the frame has been
+     * written.
+     *
+     * @param critical
+     *            false if the frame may be dropped for a slow consumer
+     * @param producer
+     *            the connection whose message led to this frame, which may
+     *            be paused for a slow consumer, or null. It must belong to
+     *            the same transport.
+     * @return false if the frame was dropped
+     */
+    boolean send(Frame frame, boolean critical, Connection producer);
+
+    /**
+     * Close the connection. Anything still queued is discarded.
+     */
+    void close();
+
+    /**
+     * Close the connection once everything queued for it so far has been
+     * written, so a client can be told why before it is closed. This waits
+     * for a slow client, so the client must not have much queued.
+     */
+    void closeWhenWritten();
+
+    boolean isClosed();
+
+    /**
+     * Run a task on the transport thread serving this connection once the
+     * delay has passed, without tying up a thread while it waits.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit);
+
+    /**
+     * Set how long this connection may stay silent before it is closed,
+     * counting from the last bytes read. Zero means no limit.
+     */
+    void setIdleTimeout(long timeout, TimeUnit unit);
+
+    /**
+     * Stop the clock on logging in, which runs from when the connection was
+     * accepted however much it sends.
+     */
+    void loggedIn();
+
+    /**
+     * The number of frames waiting to be written.
+     */
+    int getQueuedFrames();
+
+    /**
+     * The number of bytes waiting to be written.
+     */
+    long getQueuedBytes();
+
+    /**
+     * Hands out connection ids, skipping zero when they wrap around.
+     */
+    final class Ids {
+
+        private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+        private Ids() {
+        }
+
+        public static int next() {
+            int id;
+            do {
+                id = NEXT_ID.incrementAndGet() & Integer.MAX_VALUE;
+            } while (id == 0);
+            return id;
+        }
+
+    }
+
+}
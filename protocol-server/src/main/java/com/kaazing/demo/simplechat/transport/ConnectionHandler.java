@@ -0,0 +1,30 @@
+package com.kaazing.demo.simplechat.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the events of every connection of a {@link Transport}. The
+ * events of one connection come from one thread at a time, in order.
+ */
+public interface ConnectionHandler {
+
+    /**
+     * A connection was accepted. Called before any of its bytes are
+     * received.
+     */
+    void connected(Connection connection);
+
+    /**
+     * Bytes were read from a connection. The buffer stays the transport's,
+     * so the bytes must be copied if they're needed after this returns.
+     */
+    void received(Connection connection, ByteBuffer data);
+
+    /**
+     * A connection was closed, by either end. Called exactly once, after
+     * the last bytes were received, and nothing sent to the connection from
+     * then on is written.
+     */
+    void closed(Connection connection);
+
+}
@@ -0,0 +1,58 @@
+package com.kaazing.demo.simplechat.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame held in a pooled buffer, which may be queued for several
+ * connections at once. The buffer goes back to the pool once the last
+ * reference is released.
+ * <p>
+ * Whoever creates a frame holds the first reference, and each connection it
+ * is sent to takes another of its own, so the creator releases the frame as
+ * soon as it has been sent to everyone.
+ */
+public class Frame {
+
+    private ByteBuffer buffer;
+
+    private AtomicInteger refs = new AtomicInteger(1);
+
+    private Frame(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * A new frame of the given size, with a pooled buffer to be filled in.
+     */
+    public static Frame allocate(int size) {
+        return new Frame(BufferPool.get().acquire(size));
+    }
+
+    /**
+     * The bytes of the frame. Whoever writes them must use a view of their
+     * own, as the frame may be shared.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Take another reference to the frame, for a transport queueing it.
+     */
+    public Frame retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        int remaining = refs.decrementAndGet();
+        if ( remaining == 0 ) {
+            BufferPool.get().release(buffer);
+        }
+        else if ( remaining < 0 ) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+
+}
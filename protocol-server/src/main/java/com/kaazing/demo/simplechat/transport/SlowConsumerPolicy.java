@@ -0,0 +1,26 @@
+package com.kaazing.demo.simplechat.transport;
+
+/**
+ * What to do when more bytes are queued for a connection than its high
+ * watermark allows, usually because the client stopped reading.
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Stop reading from the connections whose messages are filling the
+     * queue, until it drains below the low watermark.
+     */
+    pause,
+
+    /**
+     * Drop frames that aren't critical, such as presence notifications,
+     * until the queue drains below the low watermark.
+     */
+    drop,
+
+    /**
+     * Close the connection.
+     */
+    disconnect
+
+}
@@ -0,0 +1,20 @@
+package com.kaazing.demo.simplechat.transport;
+
+/**
+ * A task scheduled to run on a transport thread once a delay has passed,
+ * which may be cancelled until then from any thread.
+ */
+public interface Timeout {
+
+    /**
+     * Stop the task from running, if it hasn't yet.
+     *
+     * @return false if the task has already run or been cancelled
+     */
+    boolean cancel();
+
+    boolean isCancelled();
+
+    boolean isExpired();
+
+}
@@ -0,0 +1,22 @@
+package com.kaazing.demo.simplechat.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * The layer that accepts connections, reads from them and writes to them.
+ * Everything above it, from framing to routing, only sees
+ * {@link Connection}s and the bytes handed to a {@link ConnectionHandler},
+ * so transports can be swapped without touching the chat logic.
+ * <p>
+ * Implementations take the {@code ServerConfig} in their constructor.
+ */
+public interface Transport {
+
+    /**
+     * Start accepting connections on the given address, on threads of the
+     * transport's own. Returns once the transport is listening.
+     */
+    void start(InetAddress host, int port, ConnectionHandler handler) throws IOException;
+
+}
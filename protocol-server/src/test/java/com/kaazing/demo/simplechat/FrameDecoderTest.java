@@ -0,0 +1,192 @@
+package com.kaazing.demo.simplechat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.kaazing.demo.simplechat.transport.BufferPool;
+
+public class FrameDecoderTest {
+
+    private static final int MAX_MESSAGE_SIZE = 64 * 1024;
+
+    private List<String> frames = new ArrayList<String>();
+
+    private FrameDecoder decoder = new FrameDecoder(payload -> frames.add(StandardCharsets.UTF_8.decode(payload).toString()),
+            MAX_MESSAGE_SIZE);
+
+    // Buffers outstanding before the test, which are all it may leave
+    private int outstanding;
+
+    @BeforeClass
+    public static void enableLeakDetection() {
+        BufferPool.get().enableLeakDetection();
+    }
+
+    @Before
+    public void countOutstanding() {
+        outstanding = BufferPool.get().getOutstanding();
+    }
+
+    @After
+    public void checkReleased() {
+        decoder.reset();
+        assertEquals("Buffers not released", outstanding, BufferPool.get().getOutstanding());
+    }
+
+    @Test
+    public void decodesMessagesInOneRead() {
+        decode("0005Hello0003abc");
+        assertFrames("Hello", "abc");
+    }
+
+    @Test
+    public void decodesPrefixSplitAcrossReads() {
+        decode("00");
+        decode("05He");
+        decode("llo000");
+        decode("3abc");
+        assertFrames("Hello", "abc");
+    }
+
+    @Test
+    public void decodesOneByteAtATime() {
+        for (char c : "0005Hello0003abc".toCharArray()) {
+            decode(String.valueOf(c));
+        }
+        assertFrames("Hello", "abc");
+    }
+
+    @Test
+    public void decodesMessageLargerThanFirstBuffer() {
+        char[] chars = new char[10000];
+        Arrays.fill(chars, 'x');
+        String text = new String(chars);
+        ByteBuffer bytes = ascii("9999" + text.substring(1) + "0002hi");
+        while (bytes.hasRemaining()) {
+            ByteBuffer read = bytes.slice();
+            read.limit(Math.min(read.remaining(), 1500));
+            bytes.position(bytes.position() + read.limit());
+            decoder.decode(read);
+        }
+        assertFrames(text.substring(1), "hi");
+    }
+
+    @Test
+    public void decodesZeroLengthMessages() {
+        decode("00000002hi0000");
+        assertFrames("", "hi", "");
+    }
+
+    @Test
+    public void leavesNothingInTheBuffer() {
+        ByteBuffer bytes = ascii("0005Hello00");
+        decoder.decode(bytes);
+        assertFalse(bytes.hasRemaining());
+    }
+
+    @Test
+    public void rejectsBadDigits() {
+        decode("0002hi");
+        expectFailure("00x5Hello");
+        // Nothing after an invalid prefix is decoded
+        decode("0002hi");
+        assertFrames("hi");
+    }
+
+    @Test
+    public void releasesPartialMessageOnReset() {
+        decode("0010Hello");
+        decoder.reset();
+        decode("0002hi");
+        assertFrames("hi");
+    }
+
+    @Test
+    public void decodesBinaryPrefix() {
+        decoder.setFraming(Framing.binary);
+        ByteBuffer bytes = ByteBuffer.allocate(13);
+        bytes.putInt(5).put(ascii("Hello")).putInt(0).flip();
+        decoder.decode(bytes);
+        assertFrames("Hello", "");
+    }
+
+    @Test
+    public void switchesFramingFromHandler() {
+        FrameDecoder[] decoders = new FrameDecoder[1];
+        decoders[0] = new FrameDecoder(payload -> {
+            frames.add(StandardCharsets.UTF_8.decode(payload).toString());
+            decoders[0].setFraming(Framing.binary);
+        }, MAX_MESSAGE_SIZE);
+        ByteBuffer bytes = ByteBuffer.allocate(16);
+        bytes.put(ascii("0005Hello")).putInt(3).put(ascii("abc")).flip();
+        decoders[0].decode(bytes);
+        assertFrames("Hello", "abc");
+    }
+
+    @Test
+    public void rejectsBinarySizeAboveLimit() {
+        decoder.setFraming(Framing.binary);
+        ByteBuffer bytes = ByteBuffer.allocate(4);
+        bytes.putInt(MAX_MESSAGE_SIZE + 1).flip();
+        expectFailure(bytes);
+    }
+
+    @Test
+    public void rejectsBinarySizeAboveIntegerRange() {
+        decoder.setFraming(Framing.binary);
+        expectFailure(ByteBuffer.wrap(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff }));
+    }
+
+    @Test
+    public void acceptsBinarySizeAtLimit() {
+        decoder.setFraming(Framing.binary);
+        ByteBuffer bytes = ByteBuffer.allocate(4 + MAX_MESSAGE_SIZE);
+        bytes.putInt(MAX_MESSAGE_SIZE).position(0);
+        // Sent in two reads, so the message is reassembled
+        bytes.limit(1000);
+        decoder.decode(bytes);
+        bytes.limit(bytes.capacity());
+        decoder.decode(bytes);
+        assertEquals(1, frames.size());
+        assertEquals(MAX_MESSAGE_SIZE, frames.get(0).length());
+    }
+
+    private void decode(String str) {
+        decoder.decode(ascii(str));
+    }
+
+    private void expectFailure(String str) {
+        expectFailure(ascii(str));
+    }
+
+    private void expectFailure(ByteBuffer bytes) {
+        try {
+            decoder.decode(bytes);
+            fail("Decoded an invalid prefix");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private void assertFrames(String... expected) {
+        assertEquals(Arrays.asList(expected), frames);
+    }
+
+    private static ByteBuffer ascii(String str) {
+        return ByteBuffer.wrap(str.getBytes(StandardCharsets.US_ASCII));
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.kaazing.demo.simplechat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class InboundMessageTest {
+
+    private InboundMessage message = new InboundMessage();
+
+    @Test
+    public void readsCredentials() {
+        read("{\"type\":\"credentials\",\"username\":\"joe\",\"role\":\"agent\",\"framing\":\"binary\"}");
+        assertEquals(InboundMessage.Type.credentials, message.getType());
+        assertEquals("joe", message.getUsername());
+        assertEquals("agent", message.getRole());
+        assertEquals("binary", message.getFraming());
+        assertNull(message.getMessageText());
+    }
+
+    @Test
+    public void readsMessageWithWhitespace() {
+        read(" {\r\n\t\"type\" : \"message\" ,\n \"messageText\" : \"Hello\" , \"to\" : \"joe\" }");
+        assertEquals(InboundMessage.Type.message, message.getType());
+        assertEquals("Hello", message.getMessageText());
+        assertEquals("joe", message.getTo());
+    }
+
+    @Test
+    public void readsEmptyObject() {
+        read("{}");
+        assertNull(message.getType());
+    }
+
+    @Test
+    public void keepsUnknownType() {
+        read("{\"type\":\"typ\\u0069ng\"}");
+        assertEquals(InboundMessage.Type.unknown, message.getType());
+        assertEquals("typing", message.getUnknownType());
+    }
+
+    @Test
+    public void forgetsFieldsOfPreviousMessage() {
+        read("{\"type\":\"message\",\"messageText\":\"Hello\",\"to\":\"joe\"}");
+        read("{\"type\":\"message\",\"messageText\":\"Bye\"}");
+        assertEquals("Bye", message.getMessageText());
+        assertNull(message.getTo());
+    }
+
+    @Test
+    public void unescapes() {
+        read("{\"messageText\":\"\\\"quoted\\\" back\\\\slash \\/ \\b\\f\\n\\r\\t\"}");
+        assertEquals("\"quoted\" back\\slash / \b\f\n\r\t", message.getMessageText());
+    }
+
+    @Test
+    public void unescapesUnicode() {
+        read("{\"messageText\":\"caf\\u00e9 \\u20AC \\ud83d\\ude00\"}");
+        assertEquals("caf\u00e9 \u20ac \ud83d\ude00", message.getMessageText());
+    }
+
+    @Test
+    public void decodesMultiByteUtf8() {
+        // Two, three and four byte sequences
+        String text = "caf\u00e9 \u20ac \u4e2d\u6587 \ud83d\ude00";
+        read("{\"messageText\":\"" + text + "\"}");
+        assertEquals(text, message.getMessageText());
+    }
+
+    @Test
+    public void decodesLongStrings() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("\u00e9\ud83d\ude00");
+        }
+        read("{\"messageText\":\"" + text + "\"}");
+        assertEquals(text.toString(), message.getMessageText());
+    }
+
+    @Test
+    public void replacesMalformedUtf8() {
+        byte[] payload = { '{', '"', 't', 'o', '"', ':', '"', 'a', (byte) 0xc3, 'b', (byte) 0xff, '"', '}' };
+        message.read(ByteBuffer.wrap(payload));
+        assertEquals("a\ufffdb\ufffd", message.getTo());
+    }
+
+    @Test
+    public void skipsNestedObjectsAndArrays() {
+        read("{\"type\":\"message\",\"extra\":{\"a\":[1,{\"b\":\"}]\\\"\"}],\"c\":\"{[\"},\"list\":[[],{},\"]\"],"
+                + "\"number\":-1.5e3,\"flag\":true,\"none\":null,\"messageText\":\"Hello\",\"to\":\"joe\"}");
+        assertEquals(InboundMessage.Type.message, message.getType());
+        assertEquals("Hello", message.getMessageText());
+        assertEquals("joe", message.getTo());
+    }
+
+    @Test
+    public void skipsKnownFieldsThatAreNotStrings() {
+        read("{\"username\":{\"first\":\"joe\"},\"to\":[\"joe\"],\"messageText\":null}");
+        assertNull(message.getUsername());
+        assertNull(message.getTo());
+        assertNull(message.getMessageText());
+    }
+
+    @Test
+    public void readsFromPositionWithoutMovingIt() {
+        ByteBuffer payload = utf8("0029{\"messageText\":\"Hello\"}trailing");
+        payload.position(4);
+        message.read(payload);
+        assertEquals("Hello", message.getMessageText());
+        assertEquals(4, payload.position());
+    }
+
+    @Test
+    public void rejectsMalformedMessages() {
+        String[] malformed = { "", "[]", "{", "{\"to\"", "{\"to\":}", "{\"to\":\"joe\"", "{\"to\":\"joe\" \"type\":\"message\"}",
+                "{\"to\":\"jo\\e\"}", "{\"to\":\"\\u00g0\"}", "{\"to\":\"\\u00", "{\"extra\":[1,2" };
+        for (String json : malformed) {
+            try {
+                read(json);
+                fail(String.format("Read %s", json));
+            }
+            catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    private void read(String json) {
+        message.read(utf8(json));
+    }
+
+    private static ByteBuffer utf8(String str) {
+        return ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,276 @@
+package com.kaazing.demo.simplechat.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.kaazing.demo.simplechat.ServerConfig;
+import com.kaazing.demo.simplechat.transport.BufferPool;
+import com.kaazing.demo.simplechat.transport.Connection;
+import com.kaazing.demo.simplechat.transport.ConnectionHandler;
+
+public class WebSocketTest {
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_PING = 0x9;
+
+    private static final byte[] MASK = { 0x12, 0x34, (byte) 0x56, (byte) 0x9a };
+
+    private static final String HANDSHAKE = "GET /chat HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: keep-alive, Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + "Sec-WebSocket-Extensions: permessage-deflate; client_max_window_bits\r\n"
+            + "\r\n";
+
+    // The bytes handed to the handler, unmasked and inflated
+    private ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    private SocketChannel socket;
+    private NioConnection connection;
+    private WebSocket webSocket;
+
+    // Buffers outstanding before the test, which are all it may leave
+    private int outstanding;
+
+    @BeforeClass
+    public static void enableLeakDetection() {
+        BufferPool.get().enableLeakDetection();
+    }
+
+    @Before
+    public void open() throws IOException {
+        outstanding = BufferPool.get().getOutstanding();
+
+        ServerConfig config = new ServerConfig();
+        config.webSocketPort = 8081;
+        config.webSocketDeflate = true;
+        ConnectionHandler handler = new ConnectionHandler() {
+
+            @Override
+            public void connected(Connection connection) {
+            }
+
+            @Override
+            public void received(Connection connection, ByteBuffer data) {
+                ByteBuffer bytes = data.duplicate();
+                while (bytes.hasRemaining()) {
+                    received.write(bytes.get());
+                }
+            }
+
+            @Override
+            public void closed(Connection connection) {
+            }
+
+        };
+
+        // The reactor is never run, so whatever is sent stays queued
+        socket = SocketChannel.open();
+        connection = new NioConnection(socket, new Reactor(handler, config), config, true);
+        webSocket = connection.getWebSocket();
+        webSocket.received(ascii(HANDSHAKE));
+        assertEquals("Handshake response", 1, connection.getQueuedFrames());
+    }
+
+    @After
+    public void close() throws IOException {
+        webSocket.release();
+        socket.close();
+        assertEquals("Buffers not released", outstanding, BufferPool.get().getOutstanding());
+    }
+
+    @Test
+    public void unmasksPayload() {
+        byte[] payload = ascii("0005Hello").array();
+        webSocket.received(ByteBuffer.wrap(frame(true, OPCODE_BINARY, false, payload)));
+        assertReceived(payload);
+    }
+
+    @Test
+    public void unmasksAcrossReads() {
+        // Long enough for a 16 bit length, and split so the mask is picked
+        // up again part way through
+        byte[] payload = text(300);
+        receiveInPieces(frame(true, OPCODE_TEXT, false, payload), 7);
+        assertReceived(payload);
+    }
+
+    @Test
+    public void joinsFragments() {
+        byte[] payload = ascii("0005Hello0003abc").array();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        write(frames, frame(false, OPCODE_TEXT, false, Arrays.copyOfRange(payload, 0, 6)));
+        // Control frames may come between fragments
+        write(frames, frame(true, OPCODE_PING, false, ascii("ping").array()));
+        write(frames, frame(false, OPCODE_CONTINUATION, false, Arrays.copyOfRange(payload, 6, 11)));
+        write(frames, frame(true, OPCODE_CONTINUATION, false, Arrays.copyOfRange(payload, 11, payload.length)));
+        receiveInPieces(frames.toByteArray(), 5);
+        assertReceived(payload);
+        assertEquals("Pong", 2, connection.getQueuedFrames());
+    }
+
+    @Test
+    public void closesOnUnmaskedFrame() {
+        byte[] frame = frame(true, OPCODE_BINARY, false, ascii("0002hi").array());
+        frame[1] &= 0x7f;
+        webSocket.received(ByteBuffer.wrap(frame));
+        webSocket.received(ByteBuffer.wrap(frame(true, OPCODE_BINARY, false, ascii("0002hi").array())));
+        assertReceived(new byte[0]);
+        assertEquals("Close frame", 2, connection.getQueuedFrames());
+    }
+
+    @Test
+    public void closesOnContinuationWithoutMessage() {
+        webSocket.received(ByteBuffer.wrap(frame(true, OPCODE_CONTINUATION, false, ascii("0002hi").array())));
+        assertReceived(new byte[0]);
+        assertEquals("Close frame", 2, connection.getQueuedFrames());
+    }
+
+    @Test
+    public void inflatesWithContextTakeover() {
+        byte[] payload = text(1000);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] first = deflate(deflater, payload);
+        byte[] second = deflate(deflater, payload);
+        deflater.end();
+        assertTrue("Second message refers back to the first", second.length < first.length);
+
+        webSocket.received(ByteBuffer.wrap(frame(true, OPCODE_BINARY, true, first)));
+        // Fragmented, and only marked as compressed on the first frame
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        write(frames, frame(false, OPCODE_BINARY, true, Arrays.copyOfRange(second, 0, 3)));
+        write(frames, frame(true, OPCODE_CONTINUATION, false, Arrays.copyOfRange(second, 3, second.length)));
+        receiveInPieces(frames.toByteArray(), 4);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        write(expected, payload);
+        write(expected, payload);
+        assertReceived(expected.toByteArray());
+    }
+
+    @Test
+    public void compressesWithContextTakeover() throws DataFormatException {
+        byte[] payload = text(1000);
+        ByteBuffer first = webSocket.compress(ByteBuffer.wrap(payload));
+        ByteBuffer second = webSocket.compress(ByteBuffer.wrap(payload));
+        try {
+            assertTrue("Second message refers back to the first", second.remaining() < first.remaining());
+            Inflater inflater = new Inflater(true);
+            assertArrayEquals(payload, inflate(inflater, first));
+            assertArrayEquals(payload, inflate(inflater, second));
+            inflater.end();
+        }
+        finally {
+            BufferPool.get().release(first);
+            BufferPool.get().release(second);
+        }
+    }
+
+    @Test
+    public void leavesShortMessagesUncompressed() {
+        assertNull(webSocket.compress(ascii("0002hi")));
+    }
+
+    /**
+     * A frame as a client sends it, masked.
+     */
+    private static byte[] frame(boolean fin, int opcode, boolean compressed, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(14 + payload.length);
+        frame.put((byte) ((fin ? 0x80 : 0) | (compressed ? 0x40 : 0) | opcode));
+        if ( payload.length <= 125 ) {
+            frame.put((byte) (0x80 | payload.length));
+        }
+        else {
+            frame.put((byte) (0x80 | 126)).putShort((short) payload.length);
+        }
+        frame.put(MASK);
+        for (int i = 0; i < payload.length; i++) {
+            frame.put((byte) (payload[i] ^ MASK[i & 3]));
+        }
+        return Arrays.copyOf(frame.array(), frame.position());
+    }
+
+    /**
+     * Compress a message as a client does, leaving out the empty block the
+     * flush ends with.
+     */
+    private static byte[] deflate(Deflater deflater, byte[] message) {
+        deflater.setInput(message);
+        byte[] out = new byte[message.length + 64];
+        int length = deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+        return Arrays.copyOf(out, length - 4);
+    }
+
+    /**
+     * Inflate a compressed frame sent by the server.
+     */
+    private static byte[] inflate(Inflater inflater, ByteBuffer frame) throws DataFormatException {
+        ByteBuffer bytes = frame.duplicate();
+        assertEquals("FIN, RSV1 and binary", 0xc2, bytes.get() & 0xff);
+        int length = bytes.get() & 0x7f;
+        if ( length == 126 ) {
+            length = bytes.getShort() & 0xffff;
+        }
+        assertEquals(length, bytes.remaining());
+        byte[] data = new byte[length + 4];
+        bytes.get(data, 0, length);
+        data[length + 2] = (byte) 0xff;
+        data[length + 3] = (byte) 0xff;
+        inflater.setInput(data);
+        byte[] out = new byte[64 * 1024];
+        return Arrays.copyOf(out, inflater.inflate(out));
+    }
+
+    private void receiveInPieces(byte[] bytes, int size) {
+        for (int i = 0; i < bytes.length; i += size) {
+            webSocket.received(ByteBuffer.wrap(Arrays.copyOfRange(bytes, i, Math.min(i + size, bytes.length))));
+        }
+    }
+
+    private void assertReceived(byte[] expected) {
+        assertEquals(new String(expected, StandardCharsets.ISO_8859_1), new String(received.toByteArray(), StandardCharsets.ISO_8859_1));
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Random letters, which only compress much when they are repeated.
+     */
+    private static byte[] text(int length) {
+        Random random = new Random(length);
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(26));
+        }
+        return text;
+    }
+
+    private static ByteBuffer ascii(String str) {
+        return ByteBuffer.wrap(str.getBytes(StandardCharsets.US_ASCII));
+    }
+
+}
@@ -0,0 +1 @@
+java -XX:+IgnoreUnrecognizedVMOptions --add-exports=java.base/sun.nio.ch=ALL-UNNAMED --add-opens=java.base/java.nio=ALL-UNNAMED -Dlog4j.configurationFile=log4j2-perf.xml -DLog4jContextSelector=org.apache.logging.log4j.core.async.AsyncLoggerContextSelector -jar protocol-server-1.0.jar %*
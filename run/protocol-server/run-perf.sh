@@ -0,0 +1,10 @@
+#!/bin/sh
+
+# Runs the server with asynchronous, garbage free logging. See log4j2-perf.xml.
+# The exports and opens let Agrona and Netty use direct buffers on Java 9 and
+# later, and Java 8 ignores them.
+java -XX:+IgnoreUnrecognizedVMOptions --add-exports=java.base/sun.nio.ch=ALL-UNNAMED \
+     --add-opens=java.base/java.nio=ALL-UNNAMED \
+     -Dlog4j.configurationFile=log4j2-perf.xml \
+     -DLog4jContextSelector=org.apache.logging.log4j.core.async.AsyncLoggerContextSelector \
+     -jar protocol-server-1.0.jar "$@"
@@ -1 +1 @@
-java -jar protocol-server-1.0.jar %1 %2
+java -XX:+IgnoreUnrecognizedVMOptions --add-exports=java.base/sun.nio.ch=ALL-UNNAMED --add-opens=java.base/java.nio=ALL-UNNAMED -jar protocol-server-1.0.jar %*
@@ -1,3 +1,7 @@
 #!/bin/sh
 
-java -jar protocol-server-1.0.jar $1 $2
+# The exports and opens let Agrona and Netty use direct buffers on Java 9 and
+# later, and Java 8 ignores them
+java -XX:+IgnoreUnrecognizedVMOptions --add-exports=java.base/sun.nio.ch=ALL-UNNAMED \
+     --add-opens=java.base/java.nio=ALL-UNNAMED \
+     -jar protocol-server-1.0.jar "$@"
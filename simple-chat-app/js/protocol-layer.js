@@ -191,6 +191,11 @@ const ChatConnection = function(connectionOptions) {
                             options.handleAgentsPresent();
                             break;
 
+                        case 'error':
+                            // The server closes the connection after this
+                            options.handleError(json.reason);
+                            break;
+
                         case 'customerMessage':
                             applicationMessage = {
                                 "sender": json.sender,